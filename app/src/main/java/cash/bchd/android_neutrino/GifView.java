@@ -2,24 +2,45 @@ package cash.bchd.android_neutrino;
 
 import android.content.Context;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Movie;
+import android.view.Choreographer;
 import android.view.View;
 
 import java.io.InputStream;
+import java.lang.ref.SoftReference;
 
-public class GifView extends View {
+/**
+ * GifView plays a gif once and then holds its last frame. The gif is decoded into
+ * a sequence of bitmaps up front, and playback is driven by Choreographer frame
+ * callbacks which stop as soon as the last frame is shown or the view is detached
+ * or hidden. Once the animation is over the view is only redrawn when Android asks.
+ */
+public class GifView extends View implements Choreographer.FrameCallback {
 
-    private InputStream inputStream;
+    // The animation stops and holds the frame at this time.
+    private static final int END_TIME_MS = 1700;
 
-    private Movie movie;
+    // The time between rendered frames, which matches the gif's own frame rate.
+    private static final int FRAME_INTERVAL_MS = 50;
+
+    // The most recently rendered gif. A confirmation shows the same gif every time,
+    // so it is only decoded again if memory ran short in between.
+    private static int cachedDrawableId;
+    private static SoftReference<Bitmap[]> cachedFrames;
 
     private int gifImageDrawableId;
 
     private Context ctx = null;
 
-    private long gifStart = 0;
+    private Bitmap[] frames;
+    private int currentFrame;
 
+    // Time played before the current run, and when the current run started.
+    private long playedMs;
+    private long runStartNanos;
+    private boolean running;
     private boolean complete;
 
     public GifView(Context context) {
@@ -33,50 +54,94 @@ public class GifView extends View {
 
     @Override
     protected void onDraw(Canvas canvas) {
-        long now = System.currentTimeMillis();
-
-        if (gifStart == 0) {
-            gifStart = now;
+        if (frames == null) {
+            return;
         }
+        Bitmap frame = frames[currentFrame];
 
-        if (movie != null) {
-            // Get gif movie duration time.
-            int duration = movie.duration();
+        // Get custom view width and height.
+        int width = this.getWidth();
+        int height = this.getHeight();
 
-            if (duration == 0) {
-                duration = 1000;
-            }
+        // Scale canvas size to fit the custom view.
+        float widthMultiplier = (float) 1.08;
+        float heightMultiplier = (float) 1.08;
+        canvas.scale((width / frame.getWidth()) * widthMultiplier, (height / frame.getHeight()) * heightMultiplier);
+
+        canvas.drawBitmap(frame, 1, 1, null);
+    }
 
-            // Get played frame percentage.
-            int relTime = (int)((now - gifStart) % duration);
-            if (complete) {
-                relTime = 1700;
-            }
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!running) {
+            return;
+        }
+        if (runStartNanos == 0) {
+            runStartNanos = frameTimeNanos;
+        }
+        long elapsedMs = playedMs + (frameTimeNanos - runStartNanos) / 1000000;
+        int frame = (int) Math.min(elapsedMs / FRAME_INTERVAL_MS, frames.length - 1);
+        if (frame != currentFrame) {
+            currentFrame = frame;
+            invalidate();
+        }
+        if (frame == frames.length - 1) {
+            complete = true;
+            running = false;
+            return;
+        }
+        Choreographer.getInstance().postFrameCallback(this);
+    }
 
-            // Set current gif frame time.
-            movie.setTime(relTime);
+    private void start() {
+        if (running || complete || frames == null || !isAttachedToWindow() || !isShown()) {
+            return;
+        }
+        running = true;
+        runStartNanos = 0;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
 
-            // Get custom view width and height.
-            int width = this.getWidth();
-            int height = this.getHeight();
+    private void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+        if (runStartNanos != 0) {
+            playedMs += (System.nanoTime() - runStartNanos) / 1000000;
+        }
+    }
 
-            // Get gif image width and height.
-            int movieWidth = movie.width();
-            int movieHeight = movie.height();
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        start();
+    }
 
-            // Scale canvas size to fit the custom view.
-            float widthMultiplier = (float) 1.08;
-            float heightMultiplier = (float) 1.08;
-            canvas.scale((width / movieWidth) * widthMultiplier, (height / movieHeight) * heightMultiplier);
+    @Override
+    protected void onDetachedFromWindow() {
+        stop();
+        super.onDetachedFromWindow();
+    }
 
-            // Draw the gif image frame to custom view canvas.
-            movie.draw(canvas, 1, 1);
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        if (isShown()) {
+            start();
+        } else {
+            stop();
+        }
+    }
 
-            // This method will invoke onDraw method.
-            invalidate();
-            if (relTime > 1700) {
-                complete = true;
-            }
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        if (visibility == View.VISIBLE) {
+            start();
+        } else {
+            stop();
         }
     }
 
@@ -88,16 +153,44 @@ public class GifView extends View {
         this.gifImageDrawableId = gifImageDrawableId;
     }
 
-    // Call this method to read the drawable gif image to create movie object.
+    // Call this method to read the drawable gif image and render its frames.
     public void drawGif()
     {
-        Resources resources = ctx.getResources();
+        frames = loadFrames(ctx.getResources(), gifImageDrawableId);
+        currentFrame = 0;
+        playedMs = 0;
+        complete = false;
+        invalidate();
+        start();
+    }
 
-        inputStream = resources.openRawResource(gifImageDrawableId);
+    private static synchronized Bitmap[] loadFrames(Resources resources, int drawableId) {
+        Bitmap[] frames = cachedFrames != null && cachedDrawableId == drawableId ? cachedFrames.get() : null;
+        if (frames != null) {
+            return frames;
+        }
 
-        movie = Movie.decodeStream(inputStream);
+        InputStream inputStream = resources.openRawResource(drawableId);
+        Movie movie = Movie.decodeStream(inputStream);
+        try {
+            inputStream.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
 
-        // Invalidate the view and invoke onDraw method.
-        invalidate();
+        int duration = movie.duration();
+        if (duration == 0) {
+            duration = 1000;
+        }
+        int end = Math.min(END_TIME_MS, duration - 1);
+        frames = new Bitmap[end / FRAME_INTERVAL_MS + 1];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = Bitmap.createBitmap(movie.width(), movie.height(), Bitmap.Config.ARGB_8888);
+            movie.setTime(Math.min(i * FRAME_INTERVAL_MS, end));
+            movie.draw(new Canvas(frames[i]), 0, 0);
+        }
+        cachedDrawableId = drawableId;
+        cachedFrames = new SoftReference<Bitmap[]>(frames);
+        return frames;
     }
-}
\ No newline at end of file
+}
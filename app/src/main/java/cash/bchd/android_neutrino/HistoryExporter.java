@@ -0,0 +1,238 @@
+package cash.bchd.android_neutrino;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import cash.bchd.android_neutrino.wallet.TransactionData;
+
+/**
+ * HistoryExporter writes the transaction history as CSV or JSON for bookkeeping.
+ * Rows are read from the TransactionStore a page at a time and written straight to
+ * the output, so an export uses the same memory no matter how long the history is.
+ *
+ * The output can be a FileChannel or any OutputStream, such as one opened on a
+ * Storage Access Framework document with ContentResolver.openOutputStream.
+ */
+public class HistoryExporter {
+
+    public enum Format { CSV, JSON }
+
+    public enum Direction { ALL, INCOMING, OUTGOING }
+
+    private static final int PAGE_SIZE = 500;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long SATOSHIS_PER_BCH = 100000000L;
+
+    private final TransactionStore store;
+    private final Format format;
+    private long fromTimestamp = Long.MIN_VALUE;
+    private long toTimestamp = Long.MAX_VALUE;
+    private Direction direction = Direction.ALL;
+
+    private long recordCount;
+    private long elapsedNanos;
+
+    public HistoryExporter(TransactionStore store, Format format) {
+        this.store = store;
+        this.format = format;
+    }
+
+    /**
+     * Only export transactions with a timestamp between from and to, inclusive.
+     * Both are unix times in seconds.
+     */
+    public void setDateRange(long from, long to) {
+        this.fromTimestamp = from;
+        this.toTimestamp = to;
+    }
+
+    public void setDirection(Direction direction) {
+        this.direction = direction;
+    }
+
+    public long export(FileChannel channel) throws IOException {
+        return export(Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Write the matching transactions to out, newest first, and return how many
+     * were written. The stream is flushed but not closed.
+     */
+    public long export(OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        recordCount = 0;
+        Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        if (format == Format.CSV) {
+            w.write("txid,date,direction,amount_bch,fiat_amount,fiat_currency,height,address,memo\n");
+        } else {
+            w.write("[");
+        }
+
+        // Rows are newest first, so the range starts at the newest row that is not
+        // after toTimestamp and ends at the first row before fromTimestamp.
+        TransactionStore.Page page = store.getPage(store.positionOf(toTimestamp), PAGE_SIZE);
+        boolean done = false;
+        while (true) {
+            for (TransactionData tx : page.rows) {
+                if (tx.getTimestamp() < fromTimestamp) {
+                    done = true;
+                    break;
+                }
+                if (direction == Direction.INCOMING && !tx.getIncoming() ||
+                        direction == Direction.OUTGOING && tx.getIncoming()) {
+                    continue;
+                }
+                if (format == Format.CSV) {
+                    writeCsv(w, tx, dateFormat);
+                } else {
+                    writeJson(w, tx, dateFormat);
+                }
+                recordCount++;
+            }
+            if (done || page.next == null) {
+                break;
+            }
+            page = store.getPage(page.next, PAGE_SIZE);
+        }
+
+        if (format == Format.JSON) {
+            w.write(recordCount == 0 ? "]\n" : "\n]\n");
+        }
+        w.flush();
+        elapsedNanos = System.nanoTime() - start;
+        return recordCount;
+    }
+
+    private void writeCsv(Writer w, TransactionData tx, SimpleDateFormat dateFormat) throws IOException {
+        w.write(tx.getTxid());
+        w.write(',');
+        w.write(dateFormat.format(new Date(tx.getTimestamp() * 1000)));
+        w.write(',');
+        w.write(tx.getIncoming() ? "in" : "out");
+        w.write(',');
+        w.write(formatBCH(tx.getAmount()));
+        w.write(',');
+        writeCsvField(w, tx.getFiatAmount());
+        w.write(',');
+        writeCsvField(w, tx.getFiatCurrency());
+        w.write(',');
+        w.write(Integer.toString(tx.getHeight()));
+        w.write(',');
+        writeCsvField(w, tx.getToAddress());
+        w.write(',');
+        writeCsvField(w, tx.getMemo());
+        w.write('\n');
+    }
+
+    private static void writeCsvField(Writer w, String s) throws IOException {
+        if (s == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < s.length() && !quote; i++) {
+            char c = s.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            w.write(s);
+            return;
+        }
+        w.write('"');
+        w.write(s.replace("\"", "\"\""));
+        w.write('"');
+    }
+
+    private void writeJson(Writer w, TransactionData tx, SimpleDateFormat dateFormat) throws IOException {
+        w.write(recordCount == 0 ? "\n  {\"txid\":\"" : ",\n  {\"txid\":\"");
+        w.write(tx.getTxid());
+        w.write("\",\"date\":\"");
+        w.write(dateFormat.format(new Date(tx.getTimestamp() * 1000)));
+        w.write("\",\"direction\":\"");
+        w.write(tx.getIncoming() ? "in" : "out");
+        w.write("\",\"amountBch\":\"");
+        w.write(formatBCH(tx.getAmount()));
+        w.write("\",\"fiatAmount\":");
+        writeJsonString(w, tx.getFiatAmount());
+        w.write(",\"fiatCurrency\":");
+        writeJsonString(w, tx.getFiatCurrency());
+        w.write(",\"height\":");
+        w.write(Integer.toString(tx.getHeight()));
+        w.write(",\"address\":");
+        writeJsonString(w, tx.getToAddress());
+        w.write(",\"memo\":");
+        writeJsonString(w, tx.getMemo());
+        w.write('}');
+    }
+
+    private static void writeJsonString(Writer w, String s) throws IOException {
+        if (s == null) {
+            w.write("null");
+            return;
+        }
+        w.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                w.write('\\');
+                w.write(c);
+            } else if (c < 0x20) {
+                w.write(String.format("\\u%04x", (int) c));
+            } else {
+                w.write(c);
+            }
+        }
+        w.write('"');
+    }
+
+    // Format satoshis as an exact decimal BCH amount. Amount.toString goes through
+    // a double and a locale dependent format, which is neither exact nor fast
+    // enough for a million rows.
+    static String formatBCH(long satoshis) {
+        StringBuilder sb = new StringBuilder();
+        if (satoshis < 0) {
+            sb.append('-');
+        }
+        long abs = Math.abs(satoshis);
+        sb.append(abs / SATOSHIS_PER_BCH);
+        long frac = abs % SATOSHIS_PER_BCH;
+        if (frac != 0) {
+            String digits = Long.toString(frac + SATOSHIS_PER_BCH).substring(1);
+            int end = digits.length();
+            while (digits.charAt(end - 1) == '0') {
+                end--;
+            }
+            sb.append('.').append(digits, 0, end);
+        }
+        return sb.toString();
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedNanos / 1000000;
+    }
+
+    public long getRecordsPerSecond() {
+        return elapsedNanos == 0 ? 0 : recordCount * 1000000000L / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "HistoryExporter{format=" + format + ", records=" + recordCount +
+                ", elapsedMs=" + getElapsedMillis() + ", recordsPerSec=" + getRecordsPerSecond() + "}";
+    }
+}
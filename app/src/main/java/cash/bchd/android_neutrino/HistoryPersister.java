@@ -0,0 +1,175 @@
+package cash.bchd.android_neutrino;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import cash.bchd.android_neutrino.wallet.TransactionData;
+
+/**
+ * HistoryPersister writes changed transactions to the TransactionStore on a
+ * background thread. Changes are collected for a short window before they are
+ * written so a burst of wallet events, such as a block carrying many of our
+ * transactions, turns into a single journal write. A transaction that changes
+ * several times inside the window is only written once.
+ */
+public class HistoryPersister {
+
+    // How long to wait for more changes before writing.
+    private static final long COALESCE_DELAY_MS = 250;
+
+    // The longest flush() blocks its caller. A write that takes longer carries on
+    // in the background.
+    static final long FLUSH_TIMEOUT_MS = 1000;
+
+    private final TransactionStore store;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    // Transactions waiting to be written, keyed by txid.
+    private final LinkedHashMap<String, TransactionData> dirty = new LinkedHashMap<String, TransactionData>();
+    private boolean scheduled;
+    private boolean closed;
+
+    private long writeCount;
+    private long recordCount;
+    private long totalWriteNanos;
+    private long maxWriteNanos;
+
+    public HistoryPersister(TransactionStore store) {
+        this.store = store;
+        executor.execute(store::compactIfNeeded);
+    }
+
+    /**
+     * Queue tx to be written. This does nothing once the persister is closed, so
+     * late wallet events after the activity is gone are dropped rather than
+     * crash; the wallet reports them again on the next launch.
+     */
+    public void markDirty(TransactionData tx) {
+        synchronized (dirty) {
+            if (closed) {
+                return;
+            }
+            dirty.put(tx.getTxid(), tx);
+            scheduleWrite();
+        }
+    }
+
+    public void markDirty(Collection<TransactionData> txs) {
+        synchronized (dirty) {
+            if (closed) {
+                return;
+            }
+            for (TransactionData tx : txs) {
+                dirty.put(tx.getTxid(), tx);
+            }
+            scheduleWrite();
+        }
+    }
+
+    private void scheduleWrite() {
+        if (!scheduled && !closed && !dirty.isEmpty()) {
+            scheduled = true;
+            executor.schedule(() -> write(true), COALESCE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write any pending changes and wait, for at most FLUSH_TIMEOUT_MS, for them to
+     * reach the journal. This is called from the UI thread, so it only appends
+     * and leaves any compaction that is due to the background thread afterwards.
+     */
+    public void flush() {
+        synchronized (dirty) {
+            if (closed) {
+                return;
+            }
+        }
+        Future<?> written = executor.submit(() -> write(false));
+        executor.execute(store::compactIfNeeded);
+        try {
+            written.get(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Flush pending changes and stop the background thread.
+     */
+    public void close() {
+        flush();
+        synchronized (dirty) {
+            closed = true;
+        }
+        executor.shutdown();
+    }
+
+    // Append the pending changes to the journal, compacting afterwards if that is
+    // due and compact is set.
+    private void write(boolean compact) {
+        List<TransactionData> batch;
+        synchronized (dirty) {
+            scheduled = false;
+            if (dirty.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<TransactionData>(dirty.values());
+            dirty.clear();
+        }
+        long start = System.nanoTime();
+        boolean compactionDue;
+        try {
+            compactionDue = store.append(batch);
+        } catch (Exception e) {
+            e.printStackTrace();
+            // Put the batch back so the next write retries it. Anything marked
+            // dirty since the batch was taken is newer and wins.
+            synchronized (dirty) {
+                for (TransactionData tx : batch) {
+                    if (!dirty.containsKey(tx.getTxid())) {
+                        dirty.put(tx.getTxid(), tx);
+                    }
+                }
+            }
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            writeCount++;
+            recordCount += batch.size();
+            totalWriteNanos += elapsed;
+            maxWriteNanos = Math.max(maxWriteNanos, elapsed);
+        }
+        if (compact && compactionDue) {
+            store.compactIfNeeded();
+        }
+    }
+
+    public synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    public synchronized long getAverageWriteMicros() {
+        return writeCount == 0 ? 0 : totalWriteNanos / writeCount / 1000;
+    }
+
+    public synchronized long getMaxWriteMicros() {
+        return maxWriteNanos / 1000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HistoryPersister{writes=" + writeCount + ", records=" + recordCount +
+                ", avgWriteUs=" + getAverageWriteMicros() + ", maxWriteUs=" + getMaxWriteMicros() + "}";
+    }
+}
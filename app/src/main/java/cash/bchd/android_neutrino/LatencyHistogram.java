@@ -0,0 +1,92 @@
+package cash.bchd.android_neutrino;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * LatencyHistogram counts durations in power of two buckets of microseconds, so
+ * recording a sample costs a few arithmetic operations and no allocation. Bucket i
+ * holds the samples below 2^i microseconds that did not fit in bucket i - 1; the
+ * last bucket also holds everything longer.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 24;
+
+    private final String name;
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized void record(long nanos) {
+        long micros = Math.max(nanos / 1000, 0);
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        counts[bucket]++;
+        count++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getAverageMicros() {
+        return count == 0 ? 0 : totalNanos / count / 1000;
+    }
+
+    public synchronized long getMaxMicros() {
+        return maxNanos / 1000;
+    }
+
+    /**
+     * Return the upper bound of the bucket holding the given fraction of samples,
+     * for example 0.99 for the 99th percentile.
+     */
+    public synchronized long getPercentileMicros(double fraction) {
+        long target = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target && seen > 0) {
+                return 1L << i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Write one "name,upper_us,count" line per non-empty bucket.
+     */
+    public synchronized void writeBuckets(Writer w) throws IOException {
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] != 0) {
+                w.write(name + "," + (1L << i) + "," + counts[i] + "\n");
+            }
+        }
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = 0;
+        }
+        count = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + "{count=" + count + ", avgUs=" + getAverageMicros() + ", p90Us=" +
+                getPercentileMicros(0.9) + ", p99Us=" + getPercentileMicros(0.99) + ", maxUs=" + getMaxMicros() + "}";
+    }
+}
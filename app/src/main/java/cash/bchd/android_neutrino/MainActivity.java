@@ -53,10 +53,10 @@ import android.widget.TextView;
 
 import com.google.android.gms.common.api.CommonStatusCodes;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Currency;
 import java.util.List;
 
@@ -68,6 +68,7 @@ import cash.bchd.android_neutrino.wallet.BitcoinPaymentURI;
 import cash.bchd.android_neutrino.wallet.Config;
 import cash.bchd.android_neutrino.wallet.ExchangeRates;
 import cash.bchd.android_neutrino.wallet.Migration;
+import cash.bchd.android_neutrino.wallet.RpcDeadlines;
 import cash.bchd.android_neutrino.wallet.TransactionData;
 import cash.bchd.android_neutrino.wallet.Wallet;
 import cash.bchd.android_neutrino.wallet.WalletEventListener;
@@ -77,6 +78,9 @@ import static cash.bchd.android_neutrino.SendActivity.RC_BARCODE_CAPTURE;
 
 
 public class MainActivity extends CloseActivity {
+    // Written to the files dir on every onStop of a debug build for offline
+    // analysis.
+    private static final String UI_METRICS_FILE_NAME = "uiMetrics.csv";
 
     Settings settings;
     ExchangeRates exchangeRates;
@@ -92,9 +96,16 @@ public class MainActivity extends CloseActivity {
     ImageView qrImage;
     TextView addrText;
     TransactionStore txStore;
+    HistoryPersister txPersister;
     RecyclerView.LayoutManager layoutManager;
     TransactionAdapter mAdapter;
+    UiMetrics uiMetrics = new UiMetrics();
+    // Set once the wallet is started, so onDestroy can detach them.
+    WalletEventCoalescer walletEvents;
+    WalletEventListener walletListener;
     SwipeRefreshLayout mSwipeRefreshLayout;
+    // Set when the wallet is asked to start while the history is still migrating.
+    boolean walletPending;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -106,7 +117,6 @@ public class MainActivity extends CloseActivity {
         SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
         this.settings = new Settings(sharedPref);
         this.exchangeRates = new ExchangeRates();
-        this.txStore = new TransactionStore(this);
         this.mSwipeRefreshLayout = findViewById(R.id.swipeRefreshLayout);
         TextView bchBalanceView = findViewById(R.id.bchBalanceView);
         Amount lastBal = new Amount(this.settings.getLastBalance());
@@ -132,15 +142,33 @@ public class MainActivity extends CloseActivity {
         recyclerView.addItemDecoration(decor);
         // use a linear layout manager
         recyclerView.setLayoutManager(layoutManager);
-        // specify an adapter
-        List<TransactionData> txs = txStore.getData();
-        Collections.sort(txs, Collections.reverseOrder());
-        if (txs.size() > 0) {
-            TextView bchPlease = findViewById(R.id.bchPlease);
-            bchPlease.setVisibility(View.GONE);
+        if (Migration.needsHistoryMigration(getFilesDir())) {
+            migrateHistory();
+        } else {
+            openHistory();
         }
-        mAdapter = new TransactionAdapter(txs, this, mCLayout, settings.getLastBlockHeight());
-        recyclerView.setAdapter(mAdapter);
+        // Keep the pages around the visible rows loaded as the list scrolls.
+        // Frame durations are recorded while the list is moving.
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    uiMetrics.stopFrames();
+                } else {
+                    uiMetrics.startFrames();
+                }
+            }
+
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (mAdapter == null) {
+                    return;
+                }
+                LinearLayoutManager manager = (LinearLayoutManager) layoutManager;
+                mAdapter.onVisibleRangeChanged(manager.findFirstVisibleItemPosition(),
+                        manager.findLastVisibleItemPosition());
+            }
+        });
         fab.setOnClickListener(view -> toggleFABMenu());
         fab.setOnTouchListener((v, event) -> {
             if (event.getAction() == MotionEvent.ACTION_DOWN) {
@@ -205,7 +233,52 @@ public class MainActivity extends CloseActivity {
         }
     }
 
+    // Migrate the transaction history on a background thread, showing how far the
+    // import has got, and open it once that is done.
+    private void migrateHistory() {
+        TextView bchPlease = findViewById(R.id.bchPlease);
+        CharSequence idleText = bchPlease.getText();
+        bchPlease.setText("Importing transaction history");
+        File dir = getFilesDir();
+        new Thread(() -> {
+            Migration.migrateHistory(dir, count -> runOnUiThread(() ->
+                    bchPlease.setText("Importing transaction history (" + count + ")")));
+            runOnUiThread(() -> {
+                if (isDestroyed()) {
+                    return;
+                }
+                bchPlease.setText(idleText);
+                openHistory();
+            });
+        }).start();
+    }
+
+    // Open the transaction history and show it, then start the wallet if it was
+    // waiting for the history.
+    private void openHistory() {
+        this.txStore = new TransactionStore(this);
+        this.txPersister = new HistoryPersister(txStore);
+        if (txStore.size() > 0) {
+            TextView bchPlease = findViewById(R.id.bchPlease);
+            bchPlease.setVisibility(View.GONE);
+        }
+        mAdapter = new TransactionAdapter(txStore, this, mCLayout, settings.getLastBlockHeight(), uiMetrics);
+        mAdapter.loadNextPage();
+        RecyclerView recyclerView = findViewById(R.id.txRecylerView);
+        recyclerView.setAdapter(mAdapter);
+        if (walletPending) {
+            walletPending = false;
+            createWallet();
+        }
+    }
+
     private void createWallet() {
+        // The wallet reports transactions into the history, so it waits for the
+        // history to be open.
+        if (txStore == null) {
+            walletPending = true;
+            return;
+        }
         if (Wallet.getInstance() == null) {
             String[] addrs = new String[0];
             String bchdIP = settings.getBchdIP();
@@ -234,6 +307,44 @@ public class MainActivity extends CloseActivity {
         cancelCloseTimer();
     }
 
+    @Override
+    protected void onStop() {
+        if (txPersister != null) {
+            txPersister.flush();
+        }
+        uiMetrics.stopFrames();
+        if (BuildConfig.DEBUG) {
+            File metricsFile = new File(getFilesDir(), UI_METRICS_FILE_NAME);
+            Wallet running = Wallet.getInstance();
+            RpcDeadlines deadlines = running != null ? running.getRpcDeadlines() : null;
+            new Thread(() -> {
+                try {
+                    uiMetrics.dump(metricsFile, deadlines);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }).start();
+        }
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        // The wallet outlives the activity, so stop it calling back into it
+        // before the persister and adapter shut down their threads.
+        if (walletListener != null && wallet != null) {
+            wallet.removeListener(walletListener);
+        }
+        if (walletEvents != null) {
+            walletEvents.close();
+        }
+        if (txPersister != null) {
+            txPersister.close();
+            mAdapter.close();
+        }
+        super.onDestroy();
+    }
+
     Rect outRect = new Rect();
     int[] location = new int[2];
 
@@ -605,6 +716,18 @@ public class MainActivity extends CloseActivity {
             mainActivityRef = new WeakReference<>(mainActivity);
         }
 
+        // Return a copy of tx valued in the user's fiat currency at the current rate.
+        private static TransactionData valueInFiat(MainActivity mainActivity, TransactionData tx) {
+            String fiatCurrency = mainActivity.settings.getFiatCurrency();
+            String formattedFiat = "";
+            try {
+                formattedFiat = mainActivity.exchangeRates.getFormattedAmountInFiat(new Amount(tx.getAmount()), Currency.getInstance(fiatCurrency));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return tx.withFiat(formattedFiat, fiatCurrency);
+        }
+
         protected String doInBackground(Wallet... wallets) {
             wallet = wallets[0];
             wallets[0].start();
@@ -613,10 +736,34 @@ public class MainActivity extends CloseActivity {
 
         protected void onPostExecute(String result) {
             try {
-                WalletEventListener listener = new WalletEventListener() {
+                MainActivity owner = mainActivityRef.get();
+                if (owner == null) {
+                    return;
+                }
+                // Events arrive on the wallet's threads and are applied to the UI once
+                // per frame by the coalescer.
+                WalletEventCoalescer events = new WalletEventCoalescer(new WalletEventCoalescer.Target() {
                     @Override
-                    public void onWalletReady() {
-                        System.out.println("Wallet ready");
+                    public void onTransactions(List<TransactionData> txs) {
+                        MainActivity mainActivity = mainActivityRef.get();
+                        if (mainActivity == null) {
+                            return;
+                        }
+                        TextView bchPlease = mainActivity.findViewById(R.id.bchPlease);
+                        bchPlease.setVisibility(View.GONE);
+                        List<TransactionData> updated = mainActivity.mAdapter.updateOrInsertTxs(txs);
+                        mainActivity.txPersister.markDirty(updated);
+                    }
+
+                    @Override
+                    public void onBlock(int blockHeight, String blockHash) {
+                        MainActivity mainActivity = mainActivityRef.get();
+                        if (mainActivity == null) {
+                            return;
+                        }
+                        mainActivity.mAdapter.onBlock(blockHeight);
+                        mainActivity.settings.setLastBlockHeight(blockHeight);
+                        mainActivity.settings.setLastBlockHash(blockHash);
                     }
 
                     @Override
@@ -627,24 +774,33 @@ public class MainActivity extends CloseActivity {
                             // perhaps print a warning.
                             return;
                         }
-                        if (mainActivity.getApplicationContext() != null) {
-                            try {
-                                Amount amt = new Amount(bal);
-                                TextView bchBalanceView = mainActivity.findViewById(R.id.bchBalanceView);
-                                String balanceStr = amt.toString() + " BCH";
-                                bchBalanceView.setText(balanceStr);
-                                String fiatAmount = mainActivity.exchangeRates.getFormattedAmountInFiat(amt, Currency.getInstance(mainActivity.settings.getFiatCurrency()));
-                                TextView fiatBalanceView = mainActivity.findViewById(R.id.fiatBalanceView);
-                                fiatBalanceView.setText(fiatAmount);
-                                mainActivity.settings.setLastBalance(bal);
-                                if (bal > 0) {
-                                    mainActivity.maybeSendBackupReminder();
-                                }
-                            } catch (Exception e) {
-                                e.printStackTrace();
+                        try {
+                            Amount amt = new Amount(bal);
+                            TextView bchBalanceView = mainActivity.findViewById(R.id.bchBalanceView);
+                            String balanceStr = amt.toString() + " BCH";
+                            bchBalanceView.setText(balanceStr);
+                            String fiatAmount = mainActivity.exchangeRates.getFormattedAmountInFiat(amt, Currency.getInstance(mainActivity.settings.getFiatCurrency()));
+                            TextView fiatBalanceView = mainActivity.findViewById(R.id.fiatBalanceView);
+                            fiatBalanceView.setText(fiatAmount);
+                            mainActivity.settings.setLastBalance(bal);
+                            if (bal > 0) {
+                                mainActivity.maybeSendBackupReminder();
                             }
+                        } catch (Exception e) {
+                            e.printStackTrace();
                         }
                     }
+                }, owner.uiMetrics);
+                WalletEventListener listener = new WalletEventListener() {
+                    @Override
+                    public void onWalletReady() {
+                        System.out.println("Wallet ready");
+                    }
+
+                    @Override
+                    public void onBalanceChange(long bal) {
+                        events.postBalance(bal);
+                    }
 
                     @Override
                     public void onWalletCreated(String seed) {
@@ -660,62 +816,19 @@ public class MainActivity extends CloseActivity {
                     @Override
                     public void onGetTransactions(List<TransactionData> txs, int blockHeight) {
                         MainActivity mainActivity = mainActivityRef.get();
-                        if (mainActivity == null) {
+                        if (mainActivity == null || txs.size() == 0) {
                             return;
                         }
-                        if (mainActivity.getApplicationContext() != null) {
-                            Collections.sort(txs, Collections.reverseOrder());
-                            mainActivity.runOnUiThread(() -> {
-                                MainActivity mainActivity2 = mainActivityRef.get();
-                                if (mainActivity2 == null) {
-                                    return;
-                                }
-                                if (txs.size() == 0) {
-                                    return;
-                                }
-                                TextView bchPlease = mainActivity2.findViewById(R.id.bchPlease);
-                                bchPlease.setVisibility(View.GONE);
-                                for (TransactionData tx : txs) {
-                                    String fiatCurrency = mainActivity2.settings.getFiatCurrency();
-                                    tx.setFiatCurrency(fiatCurrency);
-                                    String formattedFiat = "";
-                                    try {
-                                        formattedFiat = mainActivity2.exchangeRates.getFormattedAmountInFiat(new Amount(tx.getAmount()), Currency.getInstance(fiatCurrency));
-                                    } catch (Exception e) {
-                                        e.printStackTrace();
-                                    }
-                                    tx.setFiatAmount(formattedFiat);
-                                    mainActivity2.mAdapter.updateOrInsertTx(tx);
-                                }
-                                mainActivity2.mAdapter.notifyDataSetChanged();
-                                mainActivity2.txStore.setData(mainActivity2.mAdapter.getData());
-                                try {
-                                    mainActivity2.txStore.save(mainActivity2.getApplicationContext());
-                                } catch (Exception e) {
-                                    e.printStackTrace();
-                                }
-                            });
+                        List<TransactionData> valued = new ArrayList<>(txs.size());
+                        for (TransactionData tx : txs) {
+                            valued.add(valueInFiat(mainActivity, tx));
                         }
+                        events.postTransactions(valued);
                     }
 
                     @Override
                     public void onBlock(int blockHeight, String blockHash) {
-                        MainActivity mainActivity = mainActivityRef.get();
-                        if (mainActivity == null) {
-                            return;
-                        }
-                        if (mainActivity.getApplicationContext() != null) {
-                            mainActivity.runOnUiThread(() -> {
-                                MainActivity mainActivity2 = mainActivityRef.get();
-                                if (mainActivity2 == null) {
-                                    return;
-                                }
-                                mainActivity2.mAdapter.setBlockHeight(blockHeight);
-                                mainActivity2.mAdapter.notifyDataSetChanged();
-                                mainActivity2.settings.setLastBlockHeight(blockHeight);
-                                mainActivity2.settings.setLastBlockHash(blockHash);
-                            });
-                        }
+                        events.postBlock(blockHeight, blockHash);
                     }
 
                     @Override
@@ -724,39 +837,15 @@ public class MainActivity extends CloseActivity {
                         if (mainActivity == null) {
                             return;
                         }
-                        if (mainActivity.getApplicationContext() != null) {
-                            mainActivity.runOnUiThread(() -> {
-                                MainActivity mainActivity2 = mainActivityRef.get();
-                                if (mainActivity2 == null) {
-                                    return;
-                                }
-                                TextView bchPlease = mainActivity2.findViewById(R.id.bchPlease);
-                                bchPlease.setVisibility(View.GONE);
-                                String fiatCurrency = mainActivity2.settings.getFiatCurrency();
-                                tx.setFiatCurrency(fiatCurrency);
-                                String formattedFiat = "";
-                                try {
-                                    formattedFiat = mainActivity2.exchangeRates.getFormattedAmountInFiat(new Amount(tx.getAmount()), Currency.getInstance(fiatCurrency));
-                                } catch (Exception e) {
-                                    e.printStackTrace();
-                                }
-                                tx.setFiatAmount(formattedFiat);
-                                mainActivity2.mAdapter.updateOrInsertTx(tx);
-                                mainActivity2.mAdapter.notifyDataSetChanged();
-                                mainActivity2.txStore.setData(mainActivity2.mAdapter.getData());
-                                try {
-                                    mainActivity2.txStore.save(mainActivity2.getApplicationContext());
-                                } catch (Exception e) {
-                                    e.printStackTrace();
-                                }
-                            });
-                        }
+                        events.postTransaction(valueInFiat(mainActivity, tx));
                     }
                 };
                 MainActivity mainActivity = mainActivityRef.get();
                 if (mainActivity == null) {
                     return;
                 }
+                mainActivity.walletEvents = events;
+                mainActivity.walletListener = listener;
                 wallet.loadWallet(listener, mainActivity.settings.getMnemonic());
                 mainActivity.mSwipeRefreshLayout.setOnRefreshListener(() -> {
                     try {
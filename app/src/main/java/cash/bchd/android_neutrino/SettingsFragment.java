@@ -1,8 +1,12 @@
 package cash.bchd.android_neutrino;
 
+import android.app.Activity;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
+import android.widget.Toast;
+
 import com.takisoft.fix.support.v7.preference.EditTextPreference;
 
 import android.support.v7.app.AlertDialog;
@@ -12,6 +16,8 @@ import android.support.v7.preference.PreferenceScreen;
 import android.support.v7.preference.SwitchPreferenceCompat;
 import android.view.View;
 
+import java.io.OutputStream;
+
 import cash.bchd.android_neutrino.wallet.Wallet;
 import cash.bchd.android_neutrino.wallet.WalletEventListener;
 import walletrpc.Api;
@@ -20,6 +26,8 @@ public class SettingsFragment extends PreferenceFragmentCompat {
 
     public static final String FRAGMENT_TAG = "my_preference_fragment";
 
+    private static final int RC_EXPORT_HISTORY = 9100;
+
     public static final String DONATE_URI = "bitcoincash:qrhea03074073ff3zv9whh0nggxc7k03ssh8jv9mkx?label=The%20bchd%20project&message=<3%20BCHD";
 
     private static Settings settings;
@@ -161,6 +169,19 @@ public class SettingsFragment extends PreferenceFragmentCompat {
                 }
             });
 
+            Preference exportPref = (Preference) findPreference("exportHistory");
+            exportPref.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference preference) {
+                    Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+                    intent.addCategory(Intent.CATEGORY_OPENABLE);
+                    intent.setType("text/csv");
+                    intent.putExtra(Intent.EXTRA_TITLE, "transactions.csv");
+                    startActivityForResult(intent, RC_EXPORT_HISTORY);
+                    return false;
+                }
+            });
+
             Preference lovePref = (Preference) findPreference("love");
             //prefScreen.removePreference(lovePref);
             lovePref.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
@@ -281,6 +302,49 @@ public class SettingsFragment extends PreferenceFragmentCompat {
         }
     }
 
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode != RC_EXPORT_HISTORY) {
+            super.onActivityResult(requestCode, resultCode, data);
+            return;
+        }
+        if (resultCode != Activity.RESULT_OK || data == null || data.getData() == null) {
+            return;
+        }
+        Uri uri = data.getData();
+        Activity activity = getActivity();
+        // A long history takes a few seconds to write, so export it off the UI thread.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String message;
+                try {
+                    // Read the history from its files with a store of our own. It is
+                    // only ever read, so it cannot get in the way of the wallet's
+                    // store, whose changes reach the journal when MainActivity stops.
+                    TransactionStore store = new TransactionStore(activity);
+                    OutputStream out = activity.getContentResolver().openOutputStream(uri);
+                    try {
+                        long count = new HistoryExporter(store, HistoryExporter.Format.CSV).export(out);
+                        message = "Exported " + count + " transactions.";
+                    } finally {
+                        out.close();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    message = "Unable to export the transaction history.";
+                }
+                String result = message;
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(activity.getApplicationContext(), result, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }).start();
+    }
+
     @Override
     public void onDisplayPreferenceDialog(Preference preference) {
         if (preference.getKey().equals("rescan")) {
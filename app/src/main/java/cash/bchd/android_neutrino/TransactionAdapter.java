@@ -4,7 +4,10 @@ import android.app.Activity;
 import android.content.Context;
 import android.graphics.Color;
 import android.graphics.drawable.ColorDrawable;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.design.widget.CoordinatorLayout;
+import android.support.v7.util.AdapterListUpdateCallback;
 import android.support.v7.widget.RecyclerView;
 import android.text.Html;
 import android.text.method.LinkMovementMethod;
@@ -21,14 +24,50 @@ import org.w3c.dom.Text;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import cash.bchd.android_neutrino.wallet.Amount;
+import cash.bchd.android_neutrino.wallet.TransactionColumns;
 import cash.bchd.android_neutrino.wallet.TransactionData;
 
 public class TransactionAdapter extends RecyclerView.Adapter<TransactionAdapter.TxViewHolder> {
-    private List<TransactionData> mDataset;
+    // The number of rows fetched from the store at a time.
+    public static final int PAGE_SIZE = 50;
+
+    // Rows stop changing once they reach this many confirmations.
+    private static final int MAX_DISPLAYED_CONFIRMATIONS = 10;
+
+    // Payload for rows whose only change is their confirmation count.
+    private static final Object PAYLOAD_CONFIRMATIONS = new Object();
+
+    private static final String[] CONFIRMATIONS_TEXT = new String[MAX_DISPLAYED_CONFIRMATIONS];
+    static {
+        for (int i = 1; i < MAX_DISPLAYED_CONFIRMATIONS; i++) {
+            CONFIRMATIONS_TEXT[i] = i + " Confirmations";
+        }
+    }
+
+    // Rows further than this from the screen are dropped, on top of the prefetch
+    // distance, so scrolling back and forth a little does not reload them.
+    private static final int EVICT_SLACK = 2 * PAGE_SIZE;
+
+    private TransactionStore mStore;
+    private final TransactionWindow mWindow;
+    private final TransactionColumns.Row mRow;
+    private int mPrefetchDistance = PAGE_SIZE;
+    private int mFirstVisible;
+    private int mLastVisible;
+    private boolean mLoading;
+    // Bumped by every change to the dataset, so a page read before the change
+    // is thrown away and read again rather than appended out of date.
+    private int mGeneration;
+    private final ExecutorService mWorker = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final UiMetrics mMetrics;
     Context ctx;
     CoordinatorLayout cLayout;
     int blockHeight;
@@ -56,47 +95,152 @@ public class TransactionAdapter extends RecyclerView.Adapter<TransactionAdapter.
         }
     }
 
-    // Provide a suitable constructor (depends on the kind of dataset)
-    public TransactionAdapter(List<TransactionData> myDataset, Context context, CoordinatorLayout layout, int height) {
-        mDataset = myDataset;
+    // The adapter holds the pages around the visible rows in columnar form and
+    // loads the rest from the store as the list is scrolled towards them.
+    public TransactionAdapter(TransactionStore store, Context context, CoordinatorLayout layout, int height,
+                              UiMetrics metrics) {
+        mStore = store;
+        mMetrics = metrics;
         ctx = context;
         cLayout = layout;
         blockHeight = height;
+        mWindow = new TransactionWindow(new AdapterListUpdateCallback(this), PAGE_SIZE,
+                context.getResources().getColor(R.color.darkGreen),
+                context.getResources().getColor(R.color.neonPurple));
+        mRow = mWindow.getRows().newRow();
+        // Rows are identified by txid, so RecyclerView can keep a transaction's
+        // view when the rows around it are inserted or move.
+        setHasStableIds(true);
+    }
+
+    /**
+     * Stop the background thread that loads pages.
+     */
+    public void close() {
+        mWorker.shutdown();
+    }
+
+    public boolean isEndReached() {
+        return mWindow.isEndReached();
     }
 
-    public void setNewData(List<TransactionData> data) {
-        mDataset = data;
+    /**
+     * Set how many rows beyond either edge of the screen are loaded ahead of
+     * being scrolled into view.
+     */
+    public void setPrefetchDistance(int rows) {
+        mPrefetchDistance = rows;
+        loadNextPage();
     }
 
-    public List<TransactionData> getData() {
-        return mDataset;
+    /**
+     * Tell the adapter which rows are on screen. Pages far from them are dropped
+     * and pages within the prefetch distance are loaded.
+     */
+    public void onVisibleRangeChanged(int first, int last) {
+        if (first == RecyclerView.NO_POSITION) {
+            return;
+        }
+        mFirstVisible = first;
+        mLastVisible = last;
+        mWindow.evict(first, last, mPrefetchDistance + EVICT_SLACK);
+        loadNextPage();
+    }
+
+    /**
+     * Load the next page the visible rows need, if any. The page is read and
+     * formatted on a background thread and added on the UI thread.
+     */
+    public void loadNextPage() {
+        // Scrolling can still ask for pages after close() has stopped the worker.
+        if (mLoading || mWorker.isShutdown()) {
+            return;
+        }
+        int position = mWindow.nextPage(mFirstVisible, mLastVisible, mPrefetchDistance);
+        if (position < 0) {
+            return;
+        }
+        mLoading = true;
+        int limit = mWindow.pageLimit(position);
+        int generation = mGeneration;
+        mWorker.execute(() -> {
+            TransactionStore.Page page = mStore.getPage(position, limit);
+            List<TransactionRowModel> models = new ArrayList<TransactionRowModel>(page.rows.size());
+            for (TransactionData tx : page.rows) {
+                models.add(mWindow.newModel(tx));
+            }
+            mMainHandler.post(() -> onPageLoaded(position, page, models, generation));
+        });
+    }
+
+    private void onPageLoaded(int position, TransactionStore.Page page, List<TransactionRowModel> models,
+                              int generation) {
+        mLoading = false;
+        if (generation == mGeneration) {
+            mWindow.addPage(position, page, models);
+        }
+        loadNextPage();
     }
 
     public void setBlockHeight(int height) {
         blockHeight = height;
     }
 
-    public void updateOrInsertTx(TransactionData newTx) {
-        int i = 0;
-        boolean found = false;
-        for (TransactionData tx : mDataset) {
-            if (tx.getTxid().equals(newTx.getTxid())) {
-                tx.setHeight(newTx.getHeight());
-                if (tx.getFiatAmount().equals("")) {
-                    tx.setFiatAmount(newTx.getFiatAmount());
-                }
-                if (tx.getAmount() == 0) {
-                    tx.setAmount(newTx.getAmount());
-                }
-                mDataset.set(i, tx);
-                found = true;
+    /**
+     * Move to a new best block height and rebind only the confirmation status of
+     * the loaded rows whose count changes. On a reorg the height drops and the rows
+     * above it fall back to unconfirmed, which the same range query covers.
+     */
+    public void onBlock(int height) {
+        int previous = blockHeight;
+        blockHeight = height;
+        if (previous <= 0) {
+            notifyDataSetChanged();
+            return;
+        }
+        int minHeight = Math.min(previous, height) - MAX_DISPLAYED_CONFIRMATIONS + 2;
+        for (int position : mStore.positionsAtOrAboveHeight(minHeight)) {
+            if (position >= mWindow.size()) {
                 break;
             }
-            i++;
+            if (mWindow.isLoaded(position)) {
+                notifyItemChanged(position, PAYLOAD_CONFIRMATIONS);
+            }
         }
-        if (!found) {
-            mDataset.add(0, newTx);
+    }
+
+    /**
+     * Merge newTx into the dataset, notify the list of exactly the rows that
+     * changed and return the resulting transaction so the caller can persist it.
+     * Rows that are not loaded are left to be picked up by paging.
+     */
+    public TransactionData updateOrInsertTx(TransactionData newTx) {
+        return apply(mStore.upsert(newTx), true);
+    }
+
+    /**
+     * Merge a batch of transactions, newest first. A batch larger than a page,
+     * such as the initial sync, is applied in one go and followed by a single
+     * rebind since it would replace everything on screen anyway.
+     */
+    public List<TransactionData> updateOrInsertTxs(List<TransactionData> txs) {
+        boolean targeted = txs.size() <= PAGE_SIZE;
+        List<TransactionData> updated = new ArrayList<TransactionData>(txs.size());
+        for (TransactionData tx : txs) {
+            updated.add(apply(mStore.upsert(tx), targeted));
+        }
+        if (!targeted) {
+            notifyDataSetChanged();
         }
+        return updated;
+    }
+
+    // Mirror a store change in the window. The store already knows where the row
+    // was and where it is now, so there is nothing to diff.
+    private TransactionData apply(TransactionStore.Change change, boolean notify) {
+        mGeneration++;
+        mWindow.apply(change, notify);
+        return change.tx;
     }
 
     // Create new views (invoked by the layout manager)
@@ -108,61 +252,14 @@ public class TransactionAdapter extends RecyclerView.Adapter<TransactionAdapter.
                 .inflate(R.layout.tx_row, parent, false);
         // set the view's size, margins, paddings and layout parameters
         TxViewHolder vh = new TxViewHolder((LinearLayout)v);
-        return vh;
-    }
-
-    // Replace the contents of a view (invoked by the layout manager)
-    @Override
-    public void onBindViewHolder(TxViewHolder holder, int position) {
-        // - get element from your dataset at this position
-        // - replace the contents of the view with that element
-
-        TransactionData tx = mDataset.get(position);
-        String bch = "₿" + new Amount(tx.getAmount()).toString();
-        holder.bchAmount.setText(bch);
-
-        int confirmations = 0;
-        if (tx.getHeight() > 0) {
-            confirmations = blockHeight - tx.getHeight() + 1;
-        }
-        if (confirmations <= 0) {
-            holder.fiatAmount.setText("Unconfirmed");
-            holder.confirmationCircle.setImageResource(R.drawable.red_circle);
-            holder.confirmationCircle.setVisibility(View.VISIBLE);
-        } else if (confirmations < 10) {
-            holder.confirmationCircle.setImageResource(R.drawable.yellow_circle);
-            holder.confirmationCircle.setVisibility(View.VISIBLE);
-            String confirmedText = confirmations + " Confirmations";
-            holder.fiatAmount.setText(confirmedText);
-        } else {
-            holder.confirmationCircle.setVisibility(View.INVISIBLE);
-            holder.fiatAmount.setText(tx.getFiatAmount());
-        }
-
-        if (tx.getIncoming()) {
-            holder.txDescription.setText("Received Bitcoin Cash");
-            holder.arrowImage.setImageResource(R.drawable.receive_arrow);
-            holder.bchAmount.setTextColor(ctx.getResources().getColor(R.color.darkGreen));
-            if (tx.getMemo().equals("")) {
-                holder.txMemo.setText("From Bitcoin Cash Address");
-            } else {
-                holder.txMemo.setText(tx.getMemo());
-            }
-        } else {
-            holder.arrowImage.setImageResource(R.drawable.send_arrow);
-            holder.txDescription.setText("Sent Bitcoin Cash");
-            holder.bchAmount.setTextColor(ctx.getResources().getColor(R.color.neonPurple));
-            if (tx.getMemo() == null || tx.getMemo().equals("")) {
-                String to = "Sent to " + tx.getToAddress();
-                holder.txMemo.setText(to);
-            } else {
-                holder.txMemo.setText(tx.getMemo());
-            }
-        }
-
-        holder.layout.setOnClickListener(new LinearLayout.OnClickListener() {
+        vh.layout.setOnClickListener(new LinearLayout.OnClickListener() {
             @Override
             public void onClick(View v) {
+                int position = vh.getAdapterPosition();
+                if (position == RecyclerView.NO_POSITION || !mWindow.isLoaded(position)) {
+                    return;
+                }
+                TransactionData tx = mWindow.get(position);
                 View customView = LayoutInflater.from(ctx).inflate(R.layout.txdetailspopup, null);
                 PopupWindow popupWindow = new PopupWindow(customView, CoordinatorLayout.LayoutParams.WRAP_CONTENT, CoordinatorLayout.LayoutParams.WRAP_CONTENT, true);
                 popupWindow.showAtLocation(cLayout, Gravity.CENTER, 0, 0);
@@ -218,11 +315,80 @@ public class TransactionAdapter extends RecyclerView.Adapter<TransactionAdapter.
                 link.setText(url);
             }
         });
+        return vh;
+    }
+
+    // Rebind just the confirmation status when that is all that changed.
+    @Override
+    public void onBindViewHolder(TxViewHolder holder, int position, List<Object> payloads) {
+        long start = System.nanoTime();
+        boolean full = payloads.isEmpty();
+        for (Object payload : payloads) {
+            full |= payload != PAYLOAD_CONFIRMATIONS;
+        }
+        if (full) {
+            onBindViewHolder(holder, position);
+            mMetrics.recordBind(System.nanoTime() - start);
+        } else if (mWindow.isLoaded(position)) {
+            bindConfirmations(holder, mRow.moveTo(mWindow.indexOf(position)));
+            mMetrics.recordPayloadBind(System.nanoTime() - start);
+        }
+    }
+
+    private void bindConfirmations(TxViewHolder holder, TransactionColumns.Row row) {
+        int confirmations = 0;
+        if (row.getHeight() > 0) {
+            confirmations = blockHeight - row.getHeight() + 1;
+        }
+        if (confirmations <= 0) {
+            holder.fiatAmount.setText("Unconfirmed");
+            holder.confirmationCircle.setImageResource(R.drawable.red_circle);
+            holder.confirmationCircle.setVisibility(View.VISIBLE);
+        } else if (confirmations < MAX_DISPLAYED_CONFIRMATIONS) {
+            holder.confirmationCircle.setImageResource(R.drawable.yellow_circle);
+            holder.confirmationCircle.setVisibility(View.VISIBLE);
+            holder.fiatAmount.setText(CONFIRMATIONS_TEXT[confirmations]);
+        } else {
+            holder.confirmationCircle.setVisibility(View.INVISIBLE);
+            holder.fiatAmount.setText(row.getFiatAmount());
+        }
+    }
+
+    // Replace the contents of a view (invoked by the layout manager). The row's
+    // text was formatted when it was loaded, so this only assigns it. A row that
+    // is not loaded yet is left blank until its page arrives.
+    @Override
+    public void onBindViewHolder(TxViewHolder holder, int position) {
+        if (!mWindow.isLoaded(position)) {
+            holder.bchAmount.setText("");
+            holder.fiatAmount.setText("");
+            holder.txDescription.setText("");
+            holder.txMemo.setText("");
+            holder.arrowImage.setImageDrawable(null);
+            holder.confirmationCircle.setVisibility(View.INVISIBLE);
+            loadNextPage();
+            return;
+        }
+        TransactionRowModel model = mWindow.getModel(position);
+        holder.bchAmount.setText(model.bchAmount);
+        holder.bchAmount.setTextColor(model.amountColor);
+        holder.txDescription.setText(model.description);
+        holder.txMemo.setText(model.memo);
+        holder.arrowImage.setImageResource(model.arrowResource);
+        bindConfirmations(holder, mRow.moveTo(mWindow.indexOf(position)));
     }
 
     // Return the size of your dataset (invoked by the layout manager)
     @Override
     public int getItemCount() {
-        return mDataset.size();
+        return mWindow.size();
+    }
+
+    // A placeholder already has its transaction's id, read from the store without
+    // loading the row, so a position keeps its id when its page is loaded or
+    // evicted and every position has a different one.
+    @Override
+    public long getItemId(int position) {
+        return mWindow.isLoaded(position) ? mWindow.getId(position) : mStore.getId(position);
     }
 }
\ No newline at end of file
@@ -0,0 +1,34 @@
+package cash.bchd.android_neutrino;
+
+import cash.bchd.android_neutrino.wallet.Amount;
+import cash.bchd.android_neutrino.wallet.TransactionData;
+
+/**
+ * TransactionRowModel is a transaction formatted for display in the history list.
+ * It is built once, off the UI thread where possible, so that binding a row is
+ * nothing more than handing these fields to the views. Only the confirmation
+ * status depends on the block height and is worked out at bind time.
+ */
+public class TransactionRowModel {
+    public final String bchAmount;
+    public final int amountColor;
+    public final String description;
+    public final String memo;
+    public final int arrowResource;
+
+    public TransactionRowModel(TransactionData tx, int receivedColor, int sentColor) {
+        this.bchAmount = "₿" + new Amount(tx.getAmount()).toString();
+        boolean noMemo = tx.getMemo() == null || tx.getMemo().equals("");
+        if (tx.getIncoming()) {
+            this.amountColor = receivedColor;
+            this.description = "Received Bitcoin Cash";
+            this.memo = noMemo ? "From Bitcoin Cash Address" : tx.getMemo();
+            this.arrowResource = R.drawable.receive_arrow;
+        } else {
+            this.amountColor = sentColor;
+            this.description = "Sent Bitcoin Cash";
+            this.memo = noMemo ? "Sent to " + tx.getToAddress() : tx.getMemo();
+            this.arrowResource = R.drawable.send_arrow;
+        }
+    }
+}
@@ -2,50 +2,772 @@ package cash.bchd.android_neutrino;
 
 import android.content.Context;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.NotSerializableException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.lang.reflect.Array;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
+import cash.bchd.android_neutrino.wallet.HistoryFile;
+import cash.bchd.android_neutrino.wallet.HistoryRollups;
+import cash.bchd.android_neutrino.wallet.SearchTokenizer;
+import cash.bchd.android_neutrino.wallet.TransactionCodec;
 import cash.bchd.android_neutrino.wallet.TransactionData;
+import cash.bchd.android_neutrino.wallet.TransactionJournal;
+import cash.bchd.android_neutrino.wallet.TxidIndex;
 
+/**
+ * TransactionStore holds the wallet's transaction history. The bulk of the history
+ * lives in a memory mapped snapshot and is decoded one row at a time as the UI asks
+ * for it. Transactions added or changed since the snapshot was written are kept in
+ * memory and recorded in an append-only journal until the next compaction.
+ *
+ * Positions are in display order, newest first, with transactions from the same
+ * second ordered by descending txid. Both the snapshot and the in-memory rows are
+ * kept in that order and merged by binary search, so any slice of the history can
+ * be read without sorting. The store is read and updated on the UI thread and
+ * written to disk by HistoryPersister, so access is synchronized. The transactions
+ * it hands out are immutable, so callers can keep them and pass them between
+ * threads without copying.
+ */
 public class TransactionStore {
-    private final String FILE_NAME = "transactionData.dat";
-    private ArrayList<TransactionData> transactionDataSet = new ArrayList<TransactionData>();
+    private static final String SNAPSHOT_FILE_NAME = "transactionHistory.dat";
+    private static final String JOURNAL_FILE_NAME = "transactionJournal.dat";
+
+    // Fold the journal into a new snapshot once it holds this many records.
+    private static final int COMPACTION_THRESHOLD = 1000;
+
+    // The number of decoded snapshot rows to keep around for rebinding.
+    private static final int DECODE_CACHE_SIZE = 128;
+
+    private final File snapshotFile;
+    private final TransactionJournal journal;
+    private HistoryFile snapshot;
+
+    // Transactions that are not in the snapshot, newest first. headIndex maps a
+    // raw txid to its slot in headSlots, which only ever grows until compaction.
+    // The snapshot carries its own on-disk txid table.
+    private final ArrayList<TransactionData> head = new ArrayList<TransactionData>();
+    private final ArrayList<TransactionData> headSlots = new ArrayList<TransactionData>();
+    private final TxidIndex headIndex = new TxidIndex();
+
+    // Search tokens of the head rows, mapped to their slots in headSlots. The
+    // snapshot carries its own token table.
+    private final TreeMap<String, ArrayList<Integer>> headTokens = new TreeMap<String, ArrayList<Integer>>();
+
+    // Snapshot rows that have been updated since the snapshot was written.
+    private final HashMap<Integer, TransactionData> replaced = new HashMap<Integer, TransactionData>();
+
+    // Snapshot rows whose transaction has since been given a new timestamp, in
+    // ascending order. Their transactions were moved into head and the rows are
+    // skipped when reading the snapshot.
+    private final ArrayList<Integer> moved = new ArrayList<Integer>();
+
+    // Per day totals of the whole history. The snapshot stores its own totals
+    // and the rows changed since then are applied on top.
+    private final HistoryRollups rollups = new HistoryRollups();
+
+    // Set while save() writes a new snapshot outside the monitor. Transactions
+    // changed and persisted in the meantime are carried over to the new snapshot.
+    private LinkedHashMap<String, TransactionData> changedDuringSave;
+    private ArrayList<TransactionData> putDuringSave;
+
+    private final LinkedHashMap<Integer, TransactionData> decodeCache =
+            new LinkedHashMap<Integer, TransactionData>(DECODE_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, TransactionData> eldest) {
+                    return size() > DECODE_CACHE_SIZE;
+                }
+            };
+
+    /**
+     * Cursor marks the last row of a page. The next page starts right after it even
+     * if newer transactions have been added in the meantime.
+     */
+    public static class Cursor {
+        private final String txid;
+        private final long timestamp;
+
+        Cursor(TransactionData tx) {
+            this.txid = tx.getTxid();
+            this.timestamp = tx.getTimestamp();
+        }
+    }
+
+    /**
+     * Page is a newest first slice of the history. next is null once the end of the
+     * history has been reached.
+     */
+    public static class Page {
+        public final List<TransactionData> rows;
+        public final Cursor next;
+
+        Page(List<TransactionData> rows, Cursor next) {
+            this.rows = Collections.unmodifiableList(rows);
+            this.next = next;
+        }
+    }
+
+    /**
+     * Change describes the effect of an upsert. oldPosition is -1 when the
+     * transaction was not in the history before.
+     */
+    public static class Change {
+        public final TransactionData tx;
+        public final int oldPosition;
+        public final int newPosition;
+
+        Change(TransactionData tx, int oldPosition, int newPosition) {
+            this.tx = tx;
+            this.oldPosition = oldPosition;
+            this.newPosition = newPosition;
+        }
+
+        public boolean isInsert() {
+            return oldPosition < 0;
+        }
+    }
 
     public TransactionStore(Context context) {
+        this(context.getFilesDir());
+    }
+
+    /**
+     * Open the history kept in dir. Opening maps the snapshot and replays the
+     * journal, but never compacts; call compactIfNeeded() off the main thread.
+     */
+    public TransactionStore(File dir) {
+        this.snapshotFile = new File(dir, SNAPSHOT_FILE_NAME);
+        this.journal = new TransactionJournal(new File(dir, JOURNAL_FILE_NAME));
+        try {
+            this.snapshot = HistoryFile.open(snapshotFile);
+        } catch (HistoryFile.VersionException e) {
+            // An intact snapshot in a version of the format this build cannot read,
+            // which Migration.upgradeHistory normally deals with before the store
+            // opens. Keep it under its version rather than let the next compaction
+            // write over it.
+            e.printStackTrace();
+            snapshotFile.renameTo(new File(snapshotFile.getPath() + ".v" + e.version));
+        } catch (Exception e) {
+            // Snapshots are only ever replaced by an atomic rename, so bytes that do
+            // not check out were damaged some other way. Set them aside and keep
+            // whatever the journal holds; the rest comes back from the wallet's
+            // GetTransactions.
+            e.printStackTrace();
+            snapshotFile.renameTo(new File(snapshotFile.getPath() + ".corrupt"));
+        }
+        try {
+            if (snapshot != null) {
+                snapshot.readRollups(rollups);
+            }
+            journal.replay(this::apply);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized int size() {
+        return head.size() + snapshotSize();
+    }
+
+    /**
+     * Return the transaction at position, decoding it from the snapshot if needed.
+     */
+    public synchronized TransactionData get(int position) {
+        int k = headCountBefore(position);
+        if (k < head.size() && headPosition(k) == position) {
+            return head.get(k);
+        }
+        return readRow(snapshotRow(position - k));
+    }
+
+    /**
+     * Return the stable id of the transaction at position, the first eight bytes
+     * of its txid. Snapshot rows are not decoded, so this is cheap for rows the
+     * adapter has not loaded.
+     */
+    public synchronized long getId(int position) {
+        int k = headCountBefore(position);
+        if (k < head.size() && headPosition(k) == position) {
+            return ByteBuffer.wrap(TransactionCodec.txidToBytes(head.get(k).getTxid())).getLong();
+        }
+        return snapshot.id(snapshotRow(position - k));
+    }
+
+    /**
+     * Return up to limit rows following the cursor, or the newest rows if cursor is
+     * null.
+     */
+    public synchronized Page getPage(Cursor cursor, int limit) {
+        return getPage(cursor == null ? 0 : positionAfter(cursor), limit);
+    }
+
+    /**
+     * Return up to limit rows starting at position.
+     */
+    public synchronized Page getPage(int start, int limit) {
+        int end = Math.min(start + limit, size());
+        List<TransactionData> rows = new ArrayList<TransactionData>(Math.max(end - start, 0));
+        for (int i = start; i < end; i++) {
+            rows.add(get(i));
+        }
+        Cursor next = null;
+        if (end < size() && !rows.isEmpty()) {
+            next = new Cursor(rows.get(rows.size() - 1));
+        }
+        return new Page(rows, next);
+    }
+
+    /**
+     * Return the position of the newest transaction with a timestamp at or before
+     * timestamp, or size() if there is none.
+     */
+    public synchronized int positionOf(long timestamp) {
+        int lo = 0;
+        int hi = head.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (head.get(mid).getTimestamp() > timestamp) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (snapshot == null) {
+            return lo;
+        }
+        int row = snapshot.countNewerThan(timestamp);
+        return lo + row - movedBefore(row);
+    }
+
+    /**
+     * Return the positions of the transactions mined at or above minHeight in
+     * ascending order. These are the rows whose confirmation count changes when a
+     * block is connected or disconnected above minHeight - 1.
+     *
+     * Snapshot rows come from the snapshot's height table. Rows changed since the
+     * snapshot was written are few, as they are bounded by the compaction
+     * threshold, and are checked directly.
+     */
+    public synchronized int[] positionsAtOrAboveHeight(int minHeight) {
+        minHeight = Math.max(minHeight, 1);
+        ArrayList<Integer> positions = new ArrayList<Integer>();
+        if (snapshot != null) {
+            for (int row : snapshot.rowsAtOrAboveHeight(minHeight)) {
+                if (!replaced.containsKey(row) && !isMoved(row)) {
+                    positions.add(rowPosition(row));
+                }
+            }
+        }
+        for (Map.Entry<Integer, TransactionData> e : replaced.entrySet()) {
+            if (e.getValue().getHeight() >= minHeight) {
+                positions.add(rowPosition(e.getKey()));
+            }
+        }
+        for (int k = 0; k < head.size(); k++) {
+            if (head.get(k).getHeight() >= minHeight) {
+                positions.add(headPosition(k));
+            }
+        }
+        int[] result = new int[positions.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = positions.get(i);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Return up to limit transactions, newest first, whose memo or address
+     * contains a token starting with each word of query. Only the matching rows
+     * are decoded.
+     */
+    public synchronized List<TransactionData> search(String query, int limit) {
+        List<String> words = SearchTokenizer.tokenize(query);
+        List<TransactionData> results = new ArrayList<TransactionData>();
+        if (words.isEmpty()) {
+            return results;
+        }
+        BitSet rows = null;
+        BitSet slots = null;
+        for (String word : words) {
+            BitSet wordRows = snapshot != null ? snapshot.rowsMatching(word) : new BitSet();
+            for (int row : moved) {
+                wordRows.clear(row);
+            }
+            BitSet wordSlots = new BitSet();
+            String end = word + Character.MAX_VALUE;
+            for (ArrayList<Integer> tokenSlots : headTokens.subMap(word, end).values()) {
+                for (int slot : tokenSlots) {
+                    wordSlots.set(slot);
+                }
+            }
+            if (rows == null) {
+                rows = wordRows;
+                slots = wordSlots;
+            } else {
+                rows.and(wordRows);
+                slots.and(wordSlots);
+            }
+        }
+        // Snapshot rows are in display order, so only the first limit of them can
+        // make the cut once they are merged with the head rows.
+        int[] positions = new int[Math.min(rows.cardinality(), limit) + slots.cardinality()];
+        int n = 0;
+        for (int row = rows.nextSetBit(0); row >= 0 && n < limit; row = rows.nextSetBit(row + 1)) {
+            positions[n++] = rowPosition(row);
+        }
+        for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+            positions[n++] = headPosition(indexInHead(headSlots.get(slot)));
+        }
+        Arrays.sort(positions, 0, n);
+        for (int i = 0; i < n && results.size() < limit; i++) {
+            results.add(get(positions[i]));
+        }
+        return results;
+    }
+
+    /**
+     * Return the per day totals, oldest first, for the UTC days that overlap from
+     * through to. Both are unix times in seconds.
+     */
+    public synchronized List<HistoryRollups.Rollup> getDailyRollups(long from, long to) {
+        return rollups.getDaily(from, to);
+    }
+
+    /**
+     * Return the totals of the same days grouped by UTC calendar month.
+     */
+    public synchronized List<HistoryRollups.Rollup> getMonthlyRollups(long from, long to) {
+        return rollups.getMonthly(from, to);
+    }
+
+    /**
+     * Merge newTx into the history. Existing transactions are replaced by a copy
+     * that picks up the new height and any amounts they were missing. This only
+     * updates the in-memory view; use put() or putAll() to persist the result.
+     */
+    public synchronized Change upsert(TransactionData newTx) {
+        Change change = merge(newTx);
+        if (changedDuringSave != null) {
+            changedDuringSave.put(change.tx.getTxid(), change.tx);
+        }
+        return change;
+    }
+
+    private Change merge(TransactionData newTx) {
+        byte[] txid = TransactionCodec.txidToBytes(newTx.getTxid());
+        int slot = headIndex.get(txid);
+        if (slot >= 0) {
+            TransactionData old = headSlots.get(slot);
+            int k = indexInHead(old);
+            int oldPosition = headPosition(k);
+            TransactionData tx = merge(old, newTx);
+            rollups.remove(old);
+            rollups.add(tx);
+            headSlots.set(slot, tx);
+            if (tx.getTimestamp() == old.getTimestamp()) {
+                head.set(k, tx);
+            } else {
+                head.remove(k);
+                k = placeInHead(tx);
+            }
+            return new Change(tx, oldPosition, headPosition(k));
+        }
+        int row = findInSnapshot(txid);
+        if (row >= 0) {
+            TransactionData old = readRow(row);
+            int oldPosition = rowPosition(row);
+            TransactionData tx = merge(old, newTx);
+            rollups.remove(old);
+            rollups.add(tx);
+            if (tx.getTimestamp() == old.getTimestamp()) {
+                replaced.put(row, tx);
+                return new Change(tx, oldPosition, oldPosition);
+            }
+            moveOutOfSnapshot(row);
+            return new Change(tx, oldPosition, headPosition(insertIntoHead(txid, tx)));
+        }
+        int k = insertIntoHead(txid, newTx);
+        rollups.add(newTx);
+        return new Change(newTx, -1, headPosition(k));
+    }
+
+    // Return a copy of tx updated from newTx. Transactions are never changed in
+    // place because the persister may be writing the old copy on its own thread.
+    // An unmined transaction is timestamped when we first see it, so once it is
+    // mined it takes the block's timestamp and moves to where that puts it.
+    private static TransactionData merge(TransactionData tx, TransactionData newTx) {
+        String fiatAmount = tx.getFiatAmount();
+        if (fiatAmount.equals("")) {
+            fiatAmount = newTx.getFiatAmount();
+        }
+        long amount = tx.getAmount();
+        if (amount == 0) {
+            amount = newTx.getAmount();
+        }
+        long timestamp = newTx.getHeight() > 0 ? newTx.getTimestamp() : tx.getTimestamp();
+        return new TransactionData(tx.getTxid(), tx.getIncoming(), tx.getMemo(), amount, fiatAmount,
+                tx.getFiatCurrency(), timestamp, tx.getToAddress(), newTx.getHeight());
+    }
+
+    // Apply a journal record on top of the snapshot.
+    private void apply(TransactionData tx) {
+        TransactionData old = place(tx);
+        if (old != null) {
+            rollups.remove(old);
+        }
+        rollups.add(tx);
+    }
+
+    // Put tx in place of the copy of it the store holds, or add it if there is
+    // none, and return the copy it replaced. Rollups are left to the caller.
+    private TransactionData place(TransactionData tx) {
+        byte[] txid = TransactionCodec.txidToBytes(tx.getTxid());
+        int slot = headIndex.get(txid);
+        if (slot >= 0) {
+            TransactionData old = headSlots.get(slot);
+            head.remove(indexInHead(old));
+            placeInHead(tx);
+            headSlots.set(slot, tx);
+            return old;
+        }
+        int row = findInSnapshot(txid);
+        if (row >= 0) {
+            TransactionData old = readRow(row);
+            if (tx.getTimestamp() == old.getTimestamp()) {
+                replaced.put(row, tx);
+            } else {
+                moveOutOfSnapshot(row);
+                insertIntoHead(txid, tx);
+            }
+            return old;
+        }
+        insertIntoHead(txid, tx);
+        return null;
+    }
+
+    // Skip a snapshot row from now on. Its transaction is about to be added to
+    // head with a new timestamp.
+    private void moveOutOfSnapshot(int row) {
+        replaced.remove(row);
+        decodeCache.remove(row);
+        moved.add(-Collections.binarySearch(moved, row) - 1, row);
+    }
+
+    // Add tx to head and its indexes and return its index in head.
+    private int insertIntoHead(byte[] txid, TransactionData tx) {
+        int k = placeInHead(tx);
+        headIndex.put(txid, headSlots.size());
+        for (String token : SearchTokenizer.tokenize(tx)) {
+            ArrayList<Integer> tokenSlots = headTokens.get(token);
+            if (tokenSlots == null) {
+                tokenSlots = new ArrayList<Integer>();
+                headTokens.put(token, tokenSlots);
+            }
+            tokenSlots.add(headSlots.size());
+        }
+        headSlots.add(tx);
+        return k;
+    }
+
+    // Insert tx into head in display order and return its index.
+    private int placeInHead(TransactionData tx) {
+        int k = indexInHead(tx);
+        head.add(k, tx);
+        return k;
+    }
+
+    // Return the index of the first head row that does not come before tx, which
+    // is tx itself if it is in head.
+    private int indexInHead(TransactionData tx) {
+        int lo = 0;
+        int hi = head.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (head.get(mid).compareTo(tx) > 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // Return the number of snapshot rows, skipping moved ones, that come before
+    // head row k.
+    private int snapshotRowsBefore(int k) {
+        if (snapshot == null) {
+            return 0;
+        }
+        TransactionData tx = head.get(k);
+        int row = snapshot.countBefore(tx.getTimestamp(), TransactionCodec.txidToBytes(tx.getTxid()));
+        return row - movedBefore(row);
+    }
+
+    // Return the number of moved snapshot rows below row.
+    private int movedBefore(int row) {
+        int i = Collections.binarySearch(moved, row);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    private boolean isMoved(int row) {
+        return Collections.binarySearch(moved, row) >= 0;
+    }
+
+    // Return the snapshot row holding the index'th row that has not moved.
+    private int snapshotRow(int index) {
+        int row = index;
+        for (int m : moved) {
+            if (m > row) {
+                break;
+            }
+            row++;
+        }
+        return row;
+    }
+
+    private int headPosition(int k) {
+        return k + snapshotRowsBefore(k);
+    }
+
+    // Return the number of head rows with a position less than position.
+    private int headCountBefore(int position) {
+        int lo = 0;
+        int hi = head.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (headPosition(mid) < position) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int rowPosition(int row) {
+        int index = row - movedBefore(row);
+        int lo = 0;
+        int hi = head.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (snapshotRowsBefore(mid) <= index) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return index + lo;
+    }
+
+    // Return the position of the row following the one the cursor points at.
+    private int positionAfter(Cursor cursor) {
+        byte[] txid = TransactionCodec.txidToBytes(cursor.txid);
+        int slot = headIndex.get(txid);
+        if (slot >= 0) {
+            return headPosition(indexInHead(headSlots.get(slot))) + 1;
+        }
+        int row = findInSnapshot(txid);
+        if (row >= 0) {
+            return rowPosition(row) + 1;
+        }
+        // Fall back to the first row that is older than the cursor.
+        int position = 0;
+        while (position < size() && get(position).getTimestamp() >= cursor.timestamp) {
+            position++;
+        }
+        return position;
+    }
+
+    private TransactionData readRow(int row) {
+        TransactionData tx = replaced.get(row);
+        if (tx == null) {
+            tx = decodeCache.get(row);
+        }
+        if (tx == null) {
+            tx = snapshot.read(row);
+            decodeCache.put(row, tx);
+        }
+        return tx;
+    }
+
+    /**
+     * Persist a new or updated transaction by appending it to the journal.
+     */
+    public void put(TransactionData tx) throws Exception {
+        putAll(Collections.singletonList(tx));
+    }
+
+    /**
+     * Persist a batch of new or updated transactions with a single journal write,
+     * compacting the journal into a new snapshot once it has grown large enough.
+     */
+    public void putAll(List<TransactionData> txs) throws Exception {
+        if (append(txs)) {
+            save();
+        }
+    }
+
+    /**
+     * Persist a batch of new or updated transactions with a single journal write
+     * and never compact, which can take a while for a long history. Returns true
+     * if the journal has grown large enough that compactIfNeeded() should be run.
+     */
+    public synchronized boolean append(List<TransactionData> txs) throws Exception {
+        if (!txs.isEmpty()) {
+            journal.append(txs);
+            if (putDuringSave != null) {
+                putDuringSave.addAll(txs);
+            }
+        }
+        return journal.getRecordCount() > COMPACTION_THRESHOLD;
+    }
+
+    /**
+     * Compact the journal into a new snapshot if it has grown large enough, as it
+     * may have if we died before the last compaction finished.
+     */
+    public void compactIfNeeded() {
+        boolean compact;
+        synchronized (this) {
+            compact = journal.getRecordCount() > COMPACTION_THRESHOLD;
+        }
+        if (!compact) {
+            return;
+        }
         try {
-            FileInputStream fis = context.openFileInput(FILE_NAME);
-            ObjectInputStream is = new ObjectInputStream(fis);
-            transactionDataSet = (ArrayList<TransactionData>) is.readObject();
-            is.close();
-            fis.close();
-        } catch (FileNotFoundException| NotSerializableException e) {
-            // Ignore file not found
+            save();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    public void save(Context context) throws Exception{
-        FileOutputStream fos = context.openFileOutput(FILE_NAME, Context.MODE_PRIVATE);
-        ObjectOutputStream os = new ObjectOutputStream(fos);
-        os.writeObject(transactionDataSet);
-        os.close();
-        fos.close();
+    /**
+     * Write the full history to a new snapshot and empty the journal. Rows keep
+     * their current positions so a compaction is invisible to the adapter.
+     *
+     * The store is only locked to capture the history and to swap the new
+     * snapshot in. The snapshot is written from the captured view in between, so
+     * the UI keeps reading and updating the store while it is written; whatever
+     * changes in the meantime is carried over on top of the new snapshot and
+     * stays in the journal. Does nothing if another save is already running.
+     *
+     * The journal is only emptied after the new snapshot has been renamed into
+     * place. If we die in between, the journal is replayed over a snapshot that
+     * already contains its records, which is harmless because every record holds
+     * the complete transaction.
+     */
+    public void save() throws Exception {
+        SnapshotView view;
+        synchronized (this) {
+            if (changedDuringSave != null) {
+                return;
+            }
+            view = new SnapshotView(snapshot, head, replaced, moved);
+            changedDuringSave = new LinkedHashMap<String, TransactionData>();
+            putDuringSave = new ArrayList<TransactionData>();
+        }
+        try {
+            HistoryFile.write(snapshotFile, view);
+            HistoryFile written = HistoryFile.open(snapshotFile);
+            synchronized (this) {
+                snapshot = written;
+                head.clear();
+                headSlots.clear();
+                headIndex.clear();
+                headTokens.clear();
+                replaced.clear();
+                moved.clear();
+                decodeCache.clear();
+                // The rollups already count these, so only their rows are placed.
+                for (TransactionData tx : changedDuringSave.values()) {
+                    place(tx);
+                }
+                journal.rewrite(putDuringSave);
+            }
+        } finally {
+            synchronized (this) {
+                changedDuringSave = null;
+                putDuringSave = null;
+            }
+        }
+    }
+
+    /**
+     * SnapshotView is the history as it stood when a save started, read without
+     * holding the store's monitor. It keeps copies of the few rows that are not
+     * in the snapshot and an int per row saying where to find it, and decodes
+     * snapshot rows as they are asked for rather than holding them all.
+     */
+    private static class SnapshotView extends AbstractList<TransactionData> {
+        private final HistoryFile snapshot;
+        private final ArrayList<TransactionData> head;
+        private final HashMap<Integer, TransactionData> replaced;
+        // The snapshot row at each position, or -1 - k for head row k.
+        private final int[] sources;
+
+        SnapshotView(HistoryFile snapshot, List<TransactionData> head, Map<Integer, TransactionData> replaced,
+                     List<Integer> moved) {
+            this.snapshot = snapshot;
+            this.head = new ArrayList<TransactionData>(head);
+            this.replaced = new HashMap<Integer, TransactionData>(replaced);
+            int rows = snapshot != null ? snapshot.size() : 0;
+            this.sources = new int[this.head.size() + rows - moved.size()];
+            int position = 0;
+            int row = 0;
+            int m = 0;
+            for (int k = 0; k < this.head.size(); k++) {
+                TransactionData tx = this.head.get(k);
+                int before = snapshot != null ?
+                        snapshot.countBefore(tx.getTimestamp(), TransactionCodec.txidToBytes(tx.getTxid())) : 0;
+                for (; row < before; row++) {
+                    if (m < moved.size() && moved.get(m) == row) {
+                        m++;
+                    } else {
+                        sources[position++] = row;
+                    }
+                }
+                sources[position++] = -1 - k;
+            }
+            for (; row < rows; row++) {
+                if (m < moved.size() && moved.get(m) == row) {
+                    m++;
+                } else {
+                    sources[position++] = row;
+                }
+            }
+        }
+
+        @Override
+        public TransactionData get(int position) {
+            int source = sources[position];
+            if (source < 0) {
+                return head.get(-1 - source);
+            }
+            TransactionData tx = replaced.get(source);
+            return tx != null ? tx : snapshot.read(source);
+        }
+
+        @Override
+        public int size() {
+            return sources.length;
+        }
     }
 
-    public List<TransactionData> getData() {
-       return this.transactionDataSet;
+    private int findInSnapshot(byte[] txid) {
+        int row = snapshot != null ? snapshot.find(txid) : -1;
+        return row >= 0 && isMoved(row) ? -1 : row;
     }
 
-    public void setData(List<TransactionData> data) {
-        this.transactionDataSet = new ArrayList<TransactionData>(data);
+    private int snapshotSize() {
+        return snapshot != null ? snapshot.size() - moved.size() : 0;
     }
 }
@@ -0,0 +1,239 @@
+package cash.bchd.android_neutrino;
+
+import android.support.v7.util.ListUpdateCallback;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cash.bchd.android_neutrino.wallet.TransactionColumns;
+import cash.bchd.android_neutrino.wallet.TransactionData;
+
+/**
+ * TransactionWindow is the part of the history that the transaction list holds in
+ * memory. The list exposes every position up to the end of the furthest page that
+ * has been loaded, but only a contiguous window of rows around what is on screen
+ * is kept; positions outside it are placeholders until they are loaded again.
+ * Scrolling through years of history therefore holds a few pages at a time.
+ *
+ * Positions are the store's positions. Every change made through the store is
+ * mirrored here with apply(), which keeps the two in step without diffing.
+ */
+public class TransactionWindow {
+
+    /**
+     * The payload of the change reported when placeholders are filled by a page.
+     * A placeholder already carries its transaction's id, so the row is the same
+     * item before and after and is rebound in place rather than animated.
+     */
+    public static final Object PAYLOAD_LOADED = new Object();
+
+    private final TransactionColumns rows = new TransactionColumns();
+    // The display form of each held row, parallel to rows.
+    private final ArrayList<TransactionRowModel> models = new ArrayList<TransactionRowModel>();
+    private final ListUpdateCallback callback;
+    private final int receivedColor;
+    private final int sentColor;
+    private final int pageSize;
+
+    // The number of positions exposed to the list.
+    private int count;
+    // The position of the first held row.
+    private int start;
+    private boolean endReached;
+
+    public TransactionWindow(ListUpdateCallback callback, int pageSize, int receivedColor, int sentColor) {
+        this.callback = callback;
+        this.pageSize = pageSize;
+        this.receivedColor = receivedColor;
+        this.sentColor = sentColor;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEndReached() {
+        return endReached;
+    }
+
+    public boolean isLoaded(int position) {
+        return position >= start && position < start + rows.size();
+    }
+
+    /**
+     * Return the index of a held position in getRows().
+     */
+    public int indexOf(int position) {
+        return position - start;
+    }
+
+    public TransactionColumns getRows() {
+        return rows;
+    }
+
+    public TransactionRowModel getModel(int position) {
+        return models.get(position - start);
+    }
+
+    public TransactionData get(int position) {
+        return rows.get(position - start);
+    }
+
+    public long getId(int position) {
+        return rows.getId(position - start);
+    }
+
+    /**
+     * Format tx for display. Safe to call from any thread.
+     */
+    public TransactionRowModel newModel(TransactionData tx) {
+        return new TransactionRowModel(tx, receivedColor, sentColor);
+    }
+
+    /**
+     * Return the position of the next page to load so that the rows from first -
+     * distance through last + distance are held, or -1 if they already are. Rows
+     * on screen come before rows that are only prefetched.
+     */
+    public int nextPage(int first, int last, int distance) {
+        int end = start + rows.size();
+        if (rows.size() == 0) {
+            int from = Math.max(first - distance, 0);
+            return from < count || !endReached ? Math.min(from, count) : -1;
+        }
+        if (first < start) {
+            return last < start ? Math.max(first - distance, 0) : pageBefore();
+        }
+        if (last >= end && (end < count || !endReached)) {
+            return first > end ? first : end;
+        }
+        if (first - distance < start && start > 0) {
+            return pageBefore();
+        }
+        if (last + distance >= end && (end < count || !endReached)) {
+            return end;
+        }
+        return -1;
+    }
+
+    private int pageBefore() {
+        return Math.max(start - pageSize, 0);
+    }
+
+    /**
+     * Return how many rows to load at position. A page just above the window is
+     * cut short where the window starts.
+     */
+    public int pageLimit(int position) {
+        if (rows.size() > 0 && position < start && position + pageSize > start) {
+            return start - position;
+        }
+        return pageSize;
+    }
+
+    /**
+     * Add a page read from the store at position. If it does not touch the
+     * window, it replaces it.
+     */
+    public void addPage(int position, TransactionStore.Page page, List<TransactionRowModel> pageModels) {
+        int n = page.rows.size();
+        if (rows.size() > 0 && position == start + rows.size()) {
+            rows.addAll(page.rows);
+            models.addAll(pageModels);
+        } else if (rows.size() > 0 && position + n == start) {
+            rows.addAll(0, page.rows);
+            models.addAll(0, pageModels);
+            start = position;
+        } else {
+            rows.clear();
+            models.clear();
+            rows.addAll(page.rows);
+            models.addAll(pageModels);
+            start = position;
+        }
+        int end = position + n;
+        int changed = Math.min(end, count) - position;
+        if (changed > 0) {
+            callback.onChanged(position, changed, PAYLOAD_LOADED);
+        }
+        if (end > count) {
+            callback.onInserted(count, end - count);
+            count = end;
+        }
+        if (page.next == null) {
+            endReached = true;
+        }
+    }
+
+    /**
+     * Drop the held rows that are more than distance away from first through last.
+     * Their positions stay in the list as placeholders with the same ids, so the
+     * list is not notified.
+     */
+    public void evict(int first, int last, int distance) {
+        int from = Math.max(first - distance, start);
+        int to = Math.min(last + distance + 1, start + rows.size());
+        if (from >= to) {
+            rows.clear();
+            models.clear();
+            return;
+        }
+        if (to < start + rows.size()) {
+            rows.removeRange(to - start, rows.size());
+            models.subList(to - start, models.size()).clear();
+        }
+        if (from > start) {
+            rows.removeRange(0, from - start);
+            models.subList(0, from - start).clear();
+            start = from;
+        }
+    }
+
+    /**
+     * Mirror a store change, notifying the list unless notify is false.
+     */
+    public void apply(TransactionStore.Change change, boolean notify) {
+        int oldPosition = change.isInsert() || change.oldPosition >= count ? -1 : change.oldPosition;
+        int newPosition = change.newPosition;
+        if (oldPosition == newPosition) {
+            if (isLoaded(oldPosition)) {
+                rows.set(oldPosition - start, change.tx);
+                models.set(oldPosition - start, newModel(change.tx));
+            }
+            if (notify) {
+                callback.onChanged(oldPosition, 1, null);
+            }
+            return;
+        }
+        if (oldPosition >= 0) {
+            count--;
+            if (oldPosition < start) {
+                start--;
+            } else if (isLoaded(oldPosition)) {
+                rows.remove(oldPosition - start);
+                models.remove(oldPosition - start);
+            }
+        }
+        boolean exposed = newPosition < count || endReached && newPosition == count;
+        if (exposed) {
+            count++;
+            if (newPosition < start) {
+                start++;
+            } else if (newPosition <= start + rows.size()) {
+                rows.add(newPosition - start, change.tx);
+                models.add(newPosition - start, newModel(change.tx));
+            }
+        }
+        if (!notify) {
+            return;
+        }
+        if (oldPosition >= 0 && exposed) {
+            callback.onMoved(oldPosition, newPosition);
+            callback.onChanged(newPosition, 1, null);
+        } else if (oldPosition >= 0) {
+            callback.onRemoved(oldPosition, 1);
+        } else if (exposed) {
+            callback.onInserted(newPosition, 1);
+        }
+    }
+}
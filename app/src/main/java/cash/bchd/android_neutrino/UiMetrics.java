@@ -0,0 +1,171 @@
+package cash.bchd.android_neutrino;
+
+import android.view.Choreographer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import cash.bchd.android_neutrino.wallet.RpcDeadlines;
+
+/**
+ * UiMetrics records how much time the UI thread spends on the transaction list and
+ * on wallet events: the duration of each frame while the list scrolls, the time
+ * spent in each wallet callback and the latency of onBindViewHolder. The numbers
+ * can be written to a CSV file and compared before and after a change.
+ *
+ * Everything except the frame callback may be recorded from any thread.
+ */
+public class UiMetrics implements Choreographer.FrameCallback {
+
+    // A frame that takes longer than one and a half 60Hz frames has dropped at
+    // least one frame.
+    private static final long JANK_THRESHOLD_NANOS = 25000000;
+
+    private final LatencyHistogram frames = new LatencyHistogram("frame");
+    private final LatencyHistogram binds = new LatencyHistogram("bind");
+    private final LatencyHistogram payloadBinds = new LatencyHistogram("bindPayload");
+    private final LinkedHashMap<String, LatencyHistogram> callbacks = new LinkedHashMap<String, LatencyHistogram>();
+
+    private boolean recordingFrames;
+    private long lastFrameNanos;
+    private long jankFrames;
+
+    /**
+     * Start recording frame durations, for example when the list starts to
+     * scroll. Must be called on the UI thread.
+     */
+    public void startFrames() {
+        if (!recordingFrames) {
+            recordingFrames = true;
+            lastFrameNanos = 0;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Stop recording frame durations. Must be called on the UI thread.
+     */
+    public void stopFrames() {
+        recordingFrames = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!recordingFrames) {
+            return;
+        }
+        if (lastFrameNanos != 0) {
+            long duration = frameTimeNanos - lastFrameNanos;
+            frames.record(duration);
+            if (duration > JANK_THRESHOLD_NANOS) {
+                synchronized (this) {
+                    jankFrames++;
+                }
+            }
+        }
+        lastFrameNanos = frameTimeNanos;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    public void recordBind(long nanos) {
+        binds.record(nanos);
+    }
+
+    public void recordPayloadBind(long nanos) {
+        payloadBinds.record(nanos);
+    }
+
+    /**
+     * Record the time spent handling the wallet event called name.
+     */
+    public void recordCallback(String name, long nanos) {
+        LatencyHistogram h;
+        synchronized (callbacks) {
+            h = callbacks.get(name);
+            if (h == null) {
+                h = new LatencyHistogram(name);
+                callbacks.put(name, h);
+            }
+        }
+        h.record(nanos);
+    }
+
+    public synchronized long getJankFrames() {
+        return jankFrames;
+    }
+
+    private List<LatencyHistogram> histograms() {
+        List<LatencyHistogram> all = new ArrayList<LatencyHistogram>();
+        all.add(frames);
+        all.add(binds);
+        all.add(payloadBinds);
+        synchronized (callbacks) {
+            all.addAll(callbacks.values());
+        }
+        return all;
+    }
+
+    /**
+     * Write a summary of every histogram followed by their buckets to file as CSV.
+     */
+    public void dump(File file) throws IOException {
+        dump(file, null);
+    }
+
+    /**
+     * Like dump(File), followed by the calls made to each wallet RPC and how many
+     * of them exceeded their deadline. deadlines may be null when there is no
+     * wallet yet.
+     */
+    public void dump(File file, RpcDeadlines deadlines) throws IOException {
+        List<LatencyHistogram> all = histograms();
+        Writer w = new BufferedWriter(new FileWriter(file));
+        try {
+            w.write("name,count,avg_us,p50_us,p90_us,p99_us,max_us\n");
+            for (LatencyHistogram h : all) {
+                w.write(h.getName() + "," + h.getCount() + "," + h.getAverageMicros() + "," +
+                        h.getPercentileMicros(0.5) + "," + h.getPercentileMicros(0.9) + "," +
+                        h.getPercentileMicros(0.99) + "," + h.getMaxMicros() + "\n");
+            }
+            w.write("jankFrames," + getJankFrames() + ",,,,,\n");
+            w.write("\nname,upper_us,count\n");
+            for (LatencyHistogram h : all) {
+                h.writeBuckets(w);
+            }
+            if (deadlines != null) {
+                w.write("\nmethod,calls,deadline_exceeded\n");
+                for (String method : deadlines.getMethods()) {
+                    w.write(method + "," + deadlines.getCalls(method) + "," +
+                            deadlines.getDeadlineExceeded(method) + "\n");
+                }
+            }
+        } finally {
+            w.close();
+        }
+    }
+
+    public void reset() {
+        for (LatencyHistogram h : histograms()) {
+            h.reset();
+        }
+        synchronized (this) {
+            jankFrames = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("UiMetrics{jankFrames=").append(getJankFrames());
+        for (LatencyHistogram h : histograms()) {
+            sb.append(", ").append(h);
+        }
+        return sb.append("}").toString();
+    }
+}
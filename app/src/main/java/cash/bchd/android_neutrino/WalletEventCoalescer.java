@@ -0,0 +1,204 @@
+package cash.bchd.android_neutrino;
+
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cash.bchd.android_neutrino.wallet.TransactionData;
+
+/**
+ * WalletEventCoalescer collects the events the wallet reports on its own threads
+ * and hands them to the UI once per frame, instead of posting a Runnable for each
+ * one. While the wallet catches up this turns hundreds of events into a handful of
+ * UI updates: the latest balance wins, block heights collapse to the highest one
+ * and transactions are applied in batches of at most MAX_TRANSACTIONS_PER_FRAME.
+ */
+public class WalletEventCoalescer implements Choreographer.FrameCallback {
+
+    /**
+     * Target receives the coalesced events on the UI thread.
+     */
+    public interface Target {
+        void onTransactions(List<TransactionData> txs);
+
+        void onBlock(int blockHeight, String blockHash);
+
+        void onBalanceChange(long satoshis);
+    }
+
+    /**
+     * FrameScheduler runs the coalescer on the next frame. Tests supply their own
+     * so they can run frames by hand.
+     */
+    interface FrameScheduler {
+        void postFrameCallback(Choreographer.FrameCallback callback);
+
+        void removeFrameCallback(Choreographer.FrameCallback callback);
+    }
+
+    // Transactions beyond this many wait for the next frame, which bounds the time
+    // spent on a single frame during a large sync.
+    private static final int MAX_TRANSACTIONS_PER_FRAME = 200;
+
+    private final Target target;
+    private final FrameScheduler scheduler;
+    private final UiMetrics metrics;
+
+    // Events waiting for the next frame, guarded by this.
+    private ArrayList<TransactionData> transactions = new ArrayList<TransactionData>();
+    private int blockHeight = -1;
+    private String blockHash;
+    private boolean hasBalance;
+    private long balance;
+    private boolean scheduled;
+    private boolean closed;
+
+    private long frameCount;
+    private long eventCount;
+
+    /**
+     * Create a coalescer for target. This must be called on the UI thread; the
+     * post methods may be called from any thread.
+     */
+    public WalletEventCoalescer(Target target, UiMetrics metrics) {
+        this(target, metrics, new FrameScheduler() {
+            private final Choreographer choreographer = Choreographer.getInstance();
+
+            @Override
+            public void postFrameCallback(Choreographer.FrameCallback callback) {
+                choreographer.postFrameCallback(callback);
+            }
+
+            @Override
+            public void removeFrameCallback(Choreographer.FrameCallback callback) {
+                choreographer.removeFrameCallback(callback);
+            }
+        });
+    }
+
+    WalletEventCoalescer(Target target, UiMetrics metrics, FrameScheduler scheduler) {
+        this.target = target;
+        this.metrics = metrics;
+        this.scheduler = scheduler;
+    }
+
+    public synchronized void postTransaction(TransactionData tx) {
+        if (closed) {
+            return;
+        }
+        transactions.add(tx);
+        eventCount++;
+        schedule();
+    }
+
+    public synchronized void postTransactions(List<TransactionData> txs) {
+        if (closed) {
+            return;
+        }
+        transactions.addAll(txs);
+        eventCount++;
+        schedule();
+    }
+
+    public synchronized void postBlock(int height, String hash) {
+        if (closed) {
+            return;
+        }
+        if (height >= blockHeight) {
+            blockHeight = height;
+            blockHash = hash;
+        }
+        eventCount++;
+        schedule();
+    }
+
+    public synchronized void postBalance(long satoshis) {
+        if (closed) {
+            return;
+        }
+        balance = satoshis;
+        hasBalance = true;
+        eventCount++;
+        schedule();
+    }
+
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            scheduler.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Drop pending events and ignore any that are posted from now on. Must be
+     * called on the UI thread, for example when the activity is destroyed.
+     */
+    public synchronized void close() {
+        closed = true;
+        transactions.clear();
+        blockHeight = -1;
+        hasBalance = false;
+        if (scheduled) {
+            scheduled = false;
+            scheduler.removeFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        List<TransactionData> txs;
+        int height;
+        String hash;
+        boolean balanceChanged;
+        long satoshis;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            scheduled = false;
+            frameCount++;
+            if (transactions.size() <= MAX_TRANSACTIONS_PER_FRAME) {
+                txs = transactions;
+                transactions = new ArrayList<TransactionData>();
+            } else {
+                List<TransactionData> first = transactions.subList(0, MAX_TRANSACTIONS_PER_FRAME);
+                txs = new ArrayList<TransactionData>(first);
+                first.clear();
+                schedule();
+            }
+            height = blockHeight;
+            hash = blockHash;
+            blockHeight = -1;
+            blockHash = null;
+            balanceChanged = hasBalance;
+            satoshis = balance;
+            hasBalance = false;
+        }
+        long start = System.nanoTime();
+        if (!txs.isEmpty()) {
+            target.onTransactions(txs);
+            start = record("onTransactions", start);
+        }
+        if (height >= 0) {
+            target.onBlock(height, hash);
+            start = record("onBlock", start);
+        }
+        if (balanceChanged) {
+            target.onBalanceChange(satoshis);
+            record("onBalanceChange", start);
+        }
+    }
+
+    // Record the time since start against the named callback and return now.
+    private long record(String name, long start) {
+        long now = System.nanoTime();
+        metrics.recordCallback(name, now - start);
+        return now;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "WalletEventCoalescer{events=" + eventCount + ", frames=" + frameCount + "}";
+    }
+}
@@ -0,0 +1,572 @@
+package cash.bchd.android_neutrino.wallet;
+
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * HistoryFile is a read-only snapshot of the transaction history. The file is
+ * memory mapped and records are only decoded when they are asked for, so opening
+ * a snapshot costs the same no matter how many transactions it holds.
+ *
+ * Rows are stored newest first, with rows from the same second ordered by
+ * descending txid. Callers are expected to write them in that order.
+ *
+ * Layout:
+ *   header           magic, version, record count, txid table offset, txid table
+ *                    capacity, block table offset, timestamp table offset,
+ *                    height table offset, height count, string table offset,
+ *                    string count, token table offset, token count, rollup table
+ *                    offset, day count, txid column offset
+ *   records          RecordBlocks of up to 64 rows each in row order, with their
+ *                    strings replaced by ids into the string table
+ *   txid column      the raw 32 byte txid of each record
+ *   txid table       open addressing hash table of row + 1 slots, laid out with
+ *                    TxidIndex.hash so a lookup compares one or two txids
+ *   block table      the file offset of each block, plus the end of the last one
+ *   timestamp table  the timestamp of each record, for binary searches by time
+ *   height table     (height, row) pairs of the mined records sorted by height, for
+ *                    finding the rows affected by a new block or a reorg
+ *   string table     the file offset of each distinct string, followed by the
+ *                    strings themselves. Id 0 is null and has no entry.
+ *   token table      the file offset of each search token in sorted order,
+ *                    followed by the tokens, each with a delta encoded list of the
+ *                    rows whose memo or address contains it
+ *   rollup table     per day totals (start, count, incoming count, received, sent),
+ *                    oldest first
+ *
+ * This is version 1 of the format, the first one released. Any change to the
+ * layout above bumps VERSION and documents the new layout here.
+ */
+public class HistoryFile implements TransactionCodec.Strings {
+
+    private static final int MAGIC = 0x54584853; // "TXHS"
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int TXID_LENGTH = TransactionCodec.TXID_LENGTH;
+    private static final int ROLLUP_ENTRY_SIZE = 32;
+
+    /**
+     * VersionException is thrown by open() for an intact snapshot written in
+     * another version of the format. Unlike other errors it does not mean the
+     * file is damaged, so it must not be discarded.
+     */
+    public static class VersionException extends IOException {
+        public final int version;
+
+        VersionException(int version) {
+            super("Unsupported transaction history version " + version);
+            this.version = version;
+        }
+    }
+
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final int txidColumnOffset;
+    private final int txidTableOffset;
+    private final int txidTableMask;
+    private final int blockTableOffset;
+    private final int timestampTableOffset;
+    private final int heightTableOffset;
+    private final int heightCount;
+    private final int stringTableOffset;
+    private final int tokenTableOffset;
+    private final int tokenCount;
+    private final int rollupTableOffset;
+    private final int rollupCount;
+
+    // Strings are decoded on first use and shared by every record that uses them.
+    private final String[] strings;
+
+    // The most recently decoded block. Rows are usually read in runs.
+    private int cachedBlockIndex = -1;
+    private RecordBlock cachedBlock;
+
+    private HistoryFile(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a transaction history file");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new VersionException(version);
+        }
+        this.count = buffer.getInt(8);
+        this.txidTableOffset = buffer.getInt(12);
+        this.txidTableMask = buffer.getInt(16) - 1;
+        this.blockTableOffset = buffer.getInt(20);
+        this.timestampTableOffset = buffer.getInt(24);
+        this.heightTableOffset = buffer.getInt(28);
+        this.heightCount = buffer.getInt(32);
+        this.stringTableOffset = buffer.getInt(36);
+        int stringCount = buffer.getInt(40);
+        this.tokenTableOffset = buffer.getInt(44);
+        this.tokenCount = buffer.getInt(48);
+        this.rollupTableOffset = buffer.getInt(52);
+        this.rollupCount = buffer.getInt(56);
+        this.txidColumnOffset = buffer.getInt(60);
+        int blockCount = (count + RecordBlock.ROWS_PER_BLOCK - 1) / RecordBlock.ROWS_PER_BLOCK;
+        if (count < 0 || stringCount < 1 || txidColumnOffset + (long) count * TXID_LENGTH > buffer.capacity() ||
+                txidTableOffset + (txidTableMask + 1L) * 4 > buffer.capacity() ||
+                blockTableOffset + (long) (blockCount + 1) * 4 > buffer.capacity() ||
+                timestampTableOffset + (long) count * 8 > buffer.capacity() ||
+                heightCount < 0 || heightTableOffset + (long) heightCount * 8 > buffer.capacity() ||
+                stringTableOffset + (long) stringCount * 4 > buffer.capacity() ||
+                tokenCount < 0 || tokenTableOffset + (long) tokenCount * 4 > buffer.capacity() ||
+                rollupCount < 0 || rollupTableOffset + (long) rollupCount * ROLLUP_ENTRY_SIZE > buffer.capacity()) {
+            throw new IOException("Truncated transaction history file");
+        }
+        this.strings = new String[stringCount];
+    }
+
+    /**
+     * Map the snapshot at file into memory. Returns null if the file does not exist.
+     */
+    public static HistoryFile open(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return new HistoryFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Return the format version of the snapshot at file without mapping it, or -1
+     * if there is no snapshot or it does not start with a valid header.
+     */
+    public static int readVersion(File file) {
+        if (!file.exists()) {
+            return -1;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                return raf.length() >= HEADER_SIZE && raf.readInt() == MAGIC ? raf.readInt() : -1;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Decode the record stored at row.
+     */
+    public synchronized TransactionData read(int row) {
+        if (row < 0 || row >= count) {
+            throw new IndexOutOfBoundsException("row " + row + " of " + count);
+        }
+        int index = row / RecordBlock.ROWS_PER_BLOCK;
+        if (index != cachedBlockIndex) {
+            int start = buffer.getInt(blockTableOffset + index * 4);
+            int end = buffer.getInt(blockTableOffset + (index + 1) * 4);
+            try {
+                cachedBlock = RecordBlock.decode(buffer, start, end - start);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            cachedBlockIndex = index;
+        }
+        String txid = TransactionCodec.txidToString(buffer, txidColumnOffset + row * TXID_LENGTH);
+        return cachedBlock.get(row % RecordBlock.ROWS_PER_BLOCK, txid, this);
+    }
+
+    /**
+     * Return the string stored under id in the snapshot's string table.
+     */
+    @Override
+    public String get(int id) {
+        if (id == StringDictionary.NULL_ID) {
+            return null;
+        }
+        String s = strings[id];
+        if (s == null) {
+            ByteBuffer buf = buffer.duplicate();
+            buf.position(buffer.getInt(stringTableOffset + id * 4));
+            s = TransactionCodec.readString(buf);
+            strings[id] = s;
+        }
+        return s;
+    }
+
+    public long timestamp(int row) {
+        return buffer.getLong(timestampTableOffset + row * 8);
+    }
+
+    /**
+     * Return the first eight bytes of the txid at row, the same id that
+     * TransactionColumns.getId gives the transaction, without decoding the record.
+     */
+    public long id(int row) {
+        return buffer.getLong(txidColumnOffset + row * TXID_LENGTH);
+    }
+
+    /**
+     * Return the number of rows with a timestamp greater than timestamp, which is
+     * also the first row that is not newer than it.
+     */
+    public int countNewerThan(long timestamp) {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timestamp(mid) > timestamp) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Return the number of rows that come before a row with the given timestamp
+     * and txid, which is also the row such a transaction would be stored at.
+     */
+    public int countBefore(long timestamp, byte[] txid) {
+        int lo = countNewerThan(timestamp);
+        int hi = countNewerThan(timestamp - 1);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareTxid(txidColumnOffset + mid * TXID_LENGTH, txid) > 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Return the rows that were mined at or above minHeight, lowest height first.
+     * Unmined rows have a height of zero and are never returned.
+     */
+    public int[] rowsAtOrAboveHeight(int minHeight) {
+        minHeight = Math.max(minHeight, 1);
+        int lo = 0;
+        int hi = heightCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (buffer.getInt(heightTableOffset + mid * 8) < minHeight) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int[] rows = new int[heightCount - lo];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = buffer.getInt(heightTableOffset + (lo + i) * 8 + 4);
+        }
+        return rows;
+    }
+
+    /**
+     * Add the snapshot's per day totals to rollups.
+     */
+    public void readRollups(HistoryRollups rollups) {
+        for (int i = 0; i < rollupCount; i++) {
+            int offset = rollupTableOffset + i * ROLLUP_ENTRY_SIZE;
+            HistoryRollups.Rollup day = new HistoryRollups.Rollup(buffer.getLong(offset));
+            day.count = buffer.getInt(offset + 8);
+            day.incomingCount = buffer.getInt(offset + 12);
+            day.received = buffer.getLong(offset + 16);
+            day.sent = buffer.getLong(offset + 24);
+            rollups.addDay(day);
+        }
+    }
+
+    /**
+     * Return the rows with a search token that starts with prefix. The token table
+     * is sorted, so the matching tokens are found with a binary search and only
+     * their posting lists are read.
+     */
+    public BitSet rowsMatching(String prefix) {
+        BitSet rows = new BitSet(count);
+        int lo = 0;
+        int hi = tokenCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (token(mid).compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < tokenCount; i++) {
+            ByteBuffer buf = buffer.duplicate();
+            buf.position(buffer.getInt(tokenTableOffset + i * 4));
+            if (!TransactionCodec.readString(buf).startsWith(prefix)) {
+                break;
+            }
+            int n = (int) TransactionCodec.readVarint(buf);
+            int row = 0;
+            for (int j = 0; j < n; j++) {
+                row += (int) TransactionCodec.readVarint(buf);
+                rows.set(row);
+            }
+        }
+        return rows;
+    }
+
+    private String token(int i) {
+        ByteBuffer buf = buffer.duplicate();
+        buf.position(buffer.getInt(tokenTableOffset + i * 4));
+        return TransactionCodec.readString(buf);
+    }
+
+    /**
+     * Return the row holding txid or -1 if the snapshot does not contain it.
+     */
+    public int find(byte[] txid) {
+        if (count == 0) {
+            return -1;
+        }
+        int slot = TxidIndex.hash(txid) & txidTableMask;
+        while (true) {
+            int row = buffer.getInt(txidTableOffset + slot * 4) - 1;
+            if (row < 0) {
+                return -1;
+            }
+            if (txidEquals(txidColumnOffset + row * TXID_LENGTH, txid)) {
+                return row;
+            }
+            slot = (slot + 1) & txidTableMask;
+        }
+    }
+
+    // Compare the txid at offset with txid as unsigned bytes, which is the same
+    // order as their lowercase hex strings.
+    private int compareTxid(int offset, byte[] txid) {
+        for (int i = 0; i < TXID_LENGTH; i++) {
+            int d = (buffer.get(offset + i) & 0xFF) - (txid[i] & 0xFF);
+            if (d != 0) {
+                return d;
+            }
+        }
+        return 0;
+    }
+
+    private boolean txidEquals(int offset, byte[] txid) {
+        for (int i = 0; i < TXID_LENGTH; i++) {
+            if (buffer.get(offset + i) != txid[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static void write(File file, List<TransactionData> txs) throws IOException {
+        write(file, txs, true);
+    }
+
+    /**
+     * Write txs to file in list order, deflating blocks where it helps if deflate
+     * is set. The snapshot is written to a temporary file, synced to disk and then
+     * renamed into place. A crash at any point leaves either the old or the new
+     * snapshot intact, and a snapshot which is currently mapped is never modified
+     * underneath its reader.
+     */
+    public static void write(File file, List<TransactionData> txs, boolean deflate) throws IOException {
+        int n = txs.size();
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        StringDictionary dictionary = new StringDictionary();
+        StringDictionary tokens = new StringDictionary();
+        HistoryRollups rollups = new HistoryRollups();
+        long[] postings = new long[n * 4];
+        int postingCount = 0;
+        int blockCount = (n + RecordBlock.ROWS_PER_BLOCK - 1) / RecordBlock.ROWS_PER_BLOCK;
+        int[] offsets = new int[blockCount + 1];
+        // Keep the txid table at most half full so probe sequences stay short.
+        int capacity = Integer.highestOneBit(Math.max(n, 1) * 2 - 1) << 1;
+        int[] txidTable = new int[capacity];
+        byte[] txidColumn = new byte[n * TXID_LENGTH];
+        for (int i = 0; i < n; i++) {
+            TransactionData tx = txs.get(i);
+            if (i % RecordBlock.ROWS_PER_BLOCK == 0) {
+                offsets[i / RecordBlock.ROWS_PER_BLOCK] = HEADER_SIZE + records.size();
+                byte[] block = RecordBlock.encode(txs, i, Math.min(i + RecordBlock.ROWS_PER_BLOCK, n), dictionary, deflate);
+                records.write(block, 0, block.length);
+            }
+            rollups.add(tx);
+            for (String token : SearchTokenizer.tokenize(tx)) {
+                if (postingCount == postings.length) {
+                    postings = Arrays.copyOf(postings, postingCount * 2 + 16);
+                }
+                postings[postingCount++] = ((long) tokens.intern(token) << 32) | i;
+            }
+            byte[] txid = TransactionCodec.txidToBytes(tx.getTxid());
+            System.arraycopy(txid, 0, txidColumn, i * TXID_LENGTH, TXID_LENGTH);
+            int slot = TxidIndex.hash(txid) & (capacity - 1);
+            while (txidTable[slot] != 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            txidTable[slot] = i + 1;
+        }
+
+        offsets[blockCount] = HEADER_SIZE + records.size();
+        int txidColumnOffset = HEADER_SIZE + records.size();
+        int txidTableOffset = txidColumnOffset + txidColumn.length;
+        int blockTableOffset = txidTableOffset + txidTable.length * 4;
+        int timestampTableOffset = blockTableOffset + offsets.length * 4;
+        long[] heights = new long[n];
+        int heightCount = 0;
+        for (int i = 0; i < n; i++) {
+            int height = txs.get(i).getHeight();
+            if (height > 0) {
+                heights[heightCount++] = ((long) height << 32) | i;
+            }
+        }
+        Arrays.sort(heights, 0, heightCount);
+        int heightTableOffset = timestampTableOffset + n * 8;
+        int stringTableOffset = heightTableOffset + heightCount * 8;
+
+        ByteArrayOutputStream stringData = new ByteArrayOutputStream();
+        ByteBuffer stringOffsets = ByteBuffer.allocate(dictionary.size() * 4);
+        int stringDataOffset = stringTableOffset + dictionary.size() * 4;
+        stringOffsets.putInt(0);
+        for (int id = 1; id < dictionary.size(); id++) {
+            stringOffsets.putInt(stringDataOffset + stringData.size());
+            TransactionCodec.writeString(stringData, dictionary.get(id));
+        }
+
+        // Renumber the tokens in sorted order so that sorting the packed
+        // (token, row) pairs groups each token's rows together in row order.
+        String[] sortedTokens = new String[tokens.size() - 1];
+        for (int id = 1; id < tokens.size(); id++) {
+            sortedTokens[id - 1] = tokens.get(id);
+        }
+        Arrays.sort(sortedTokens);
+        int[] rank = new int[tokens.size()];
+        for (int r = 0; r < sortedTokens.length; r++) {
+            rank[tokens.intern(sortedTokens[r])] = r;
+        }
+        for (int i = 0; i < postingCount; i++) {
+            postings[i] = ((long) rank[(int) (postings[i] >>> 32)] << 32) | (postings[i] & 0xFFFFFFFFL);
+        }
+        Arrays.sort(postings, 0, postingCount);
+        int tokenTableOffset = stringDataOffset + stringData.size();
+        int tokenDataOffset = tokenTableOffset + sortedTokens.length * 4;
+        ByteArrayOutputStream tokenData = new ByteArrayOutputStream();
+        ByteBuffer tokenOffsets = ByteBuffer.allocate(sortedTokens.length * 4);
+        for (int r = 0, p = 0; r < sortedTokens.length; r++) {
+            tokenOffsets.putInt(tokenDataOffset + tokenData.size());
+            TransactionCodec.writeString(tokenData, sortedTokens[r]);
+            int end = p;
+            while (end < postingCount && (int) (postings[end] >>> 32) == r) {
+                end++;
+            }
+            TransactionCodec.writeVarint(tokenData, end - p);
+            int previous = 0;
+            for (; p < end; p++) {
+                int row = (int) postings[p];
+                TransactionCodec.writeVarint(tokenData, row - previous);
+                previous = row;
+            }
+        }
+
+        int rollupTableOffset = tokenDataOffset + tokenData.size();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        OutputStream out = new BufferedOutputStream(fos);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(txidTableOffset).putInt(capacity)
+                    .putInt(blockTableOffset).putInt(timestampTableOffset)
+                    .putInt(heightTableOffset).putInt(heightCount)
+                    .putInt(stringTableOffset).putInt(dictionary.size())
+                    .putInt(tokenTableOffset).putInt(sortedTokens.length)
+                    .putInt(rollupTableOffset).putInt(rollups.getDays().size())
+                    .putInt(txidColumnOffset);
+            out.write(header.array());
+            records.writeTo(out);
+            out.write(txidColumn);
+            ByteBuffer column = ByteBuffer.allocate(8);
+            for (int slot : txidTable) {
+                column.clear();
+                column.putInt(slot);
+                out.write(column.array(), 0, 4);
+            }
+            for (int o : offsets) {
+                column.clear();
+                column.putInt(o);
+                out.write(column.array(), 0, 4);
+            }
+            for (TransactionData tx : txs) {
+                column.clear();
+                column.putLong(tx.getTimestamp());
+                out.write(column.array(), 0, 8);
+            }
+            // Each packed entry is the height in the high word and the row in
+            // the low word, which is exactly the on-disk (height, row) pair.
+            for (int i = 0; i < heightCount; i++) {
+                column.clear();
+                column.putLong(heights[i]);
+                out.write(column.array(), 0, 8);
+            }
+            out.write(stringOffsets.array());
+            stringData.writeTo(out);
+            out.write(tokenOffsets.array());
+            tokenData.writeTo(out);
+            ByteBuffer day = ByteBuffer.allocate(ROLLUP_ENTRY_SIZE);
+            for (HistoryRollups.Rollup r : rollups.getDays()) {
+                day.clear();
+                day.putLong(r.start).putInt(r.count).putInt(r.incomingCount).putLong(r.received).putLong(r.sent);
+                out.write(day.array());
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+        syncDirectory(file.getParentFile());
+    }
+
+    /**
+     * Sync dir to disk, so that a file just renamed into it stays renamed after a
+     * power loss rather than only a crash.
+     */
+    static void syncDirectory(File dir) {
+        if (dir == null) {
+            return;
+        }
+        try {
+            FileDescriptor fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
+            }
+        } catch (Exception | LinkageError e) {
+            // Some file systems cannot sync a directory, and Os is not there at all
+            // in local unit tests. The rename is still atomic either way.
+        }
+    }
+}
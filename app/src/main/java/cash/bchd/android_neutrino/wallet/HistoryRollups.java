@@ -0,0 +1,150 @@
+package cash.bchd.android_neutrino.wallet;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * HistoryRollups keeps running totals of the transaction history per UTC day so
+ * that dashboard questions such as "how much did we receive this month" cost one
+ * step per day or month instead of one per transaction.
+ *
+ * Totals are kept in satoshis. Outgoing amounts are the wallet's net debit, which
+ * already includes the fee.
+ */
+public class HistoryRollups {
+
+    public static final long SECONDS_PER_DAY = 86400;
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private final TreeMap<Long, Rollup> days = new TreeMap<Long, Rollup>();
+
+    /**
+     * Rollup holds the totals of the transactions in one bucket. start is the unix
+     * time in seconds at which the bucket begins.
+     */
+    public static class Rollup {
+        public final long start;
+        public int count;
+        public int incomingCount;
+        public long received;
+        public long sent;
+
+        public Rollup(long start) {
+            this.start = start;
+        }
+
+        void add(Rollup r) {
+            count += r.count;
+            incomingCount += r.incomingCount;
+            received += r.received;
+            sent += r.sent;
+        }
+
+        public long getNet() {
+            return received - sent;
+        }
+
+        @Override
+        public String toString() {
+            return "Rollup{start=" + start + ", count=" + count + ", received=" + received + ", sent=" + sent + "}";
+        }
+    }
+
+    public void add(TransactionData tx) {
+        update(tx, 1);
+    }
+
+    /**
+     * Take tx back out of the totals, for example before it is replaced by an
+     * updated copy.
+     */
+    public void remove(TransactionData tx) {
+        update(tx, -1);
+    }
+
+    private void update(TransactionData tx, int sign) {
+        long day = dayOf(tx.getTimestamp());
+        Rollup r = days.get(day);
+        if (r == null) {
+            r = new Rollup(day);
+            days.put(day, r);
+        }
+        r.count += sign;
+        if (tx.getIncoming()) {
+            r.incomingCount += sign;
+            r.received += sign * tx.getAmount();
+        } else {
+            r.sent -= sign * tx.getAmount();
+        }
+        if (r.count == 0) {
+            days.remove(day);
+        }
+    }
+
+    /**
+     * Add a precomputed day, as stored in a history snapshot.
+     */
+    public void addDay(Rollup day) {
+        Rollup r = days.get(day.start);
+        if (r == null) {
+            r = new Rollup(day.start);
+            days.put(day.start, r);
+        }
+        r.add(day);
+    }
+
+    public Collection<Rollup> getDays() {
+        return days.values();
+    }
+
+    public void clear() {
+        days.clear();
+    }
+
+    /**
+     * Return the days that overlap from through to, oldest first.
+     */
+    public List<Rollup> getDaily(long from, long to) {
+        List<Rollup> daily = new ArrayList<Rollup>();
+        for (Rollup day : days.subMap(dayOf(from), true, to, true).values()) {
+            Rollup copy = new Rollup(day.start);
+            copy.add(day);
+            daily.add(copy);
+        }
+        return daily;
+    }
+
+    /**
+     * Return the totals of the days that overlap from through to, grouped by UTC
+     * calendar month, oldest first.
+     */
+    public List<Rollup> getMonthly(long from, long to) {
+        List<Rollup> months = new ArrayList<Rollup>();
+        Rollup month = null;
+        for (Rollup day : days.subMap(dayOf(from), true, to, true).values()) {
+            long start = monthOf(day.start);
+            if (month == null || month.start != start) {
+                month = new Rollup(start);
+                months.add(month);
+            }
+            month.add(day);
+        }
+        return months;
+    }
+
+    public static long dayOf(long timestamp) {
+        return Math.floorDiv(timestamp, SECONDS_PER_DAY) * SECONDS_PER_DAY;
+    }
+
+    public static long monthOf(long timestamp) {
+        Calendar c = Calendar.getInstance(UTC);
+        c.setTimeInMillis(dayOf(timestamp) * 1000);
+        c.set(Calendar.DAY_OF_MONTH, 1);
+        return c.getTimeInMillis() / 1000;
+    }
+}
@@ -2,11 +2,36 @@ package cash.bchd.android_neutrino.wallet;
 
 import android.content.Context;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class Migration {
+    // These must match the file names used by TransactionStore.
+    private static final String LEGACY_HISTORY_FILE_NAME = "transactionData.dat";
+    private static final String HISTORY_SNAPSHOT_FILE_NAME = "transactionHistory.dat";
+    private static final String HISTORY_JOURNAL_FILE_NAME = "transactionJournal.dat";
+
+    // Legacy transactions are merged into the snapshot this many at a time, which
+    // bounds the memory the import needs however long the legacy history is.
+    static final int IMPORT_BATCH_SIZE = 5000;
+
     private int currentVersion;
 
+    /**
+     * ImportProgress is told how many legacy transactions have been imported after
+     * each batch, on the thread running migrateHistory.
+     */
+    public interface ImportProgress {
+        void onImported(int count);
+    }
+
     public Migration(int currentVersion) {
         this.currentVersion = currentVersion;
     }
@@ -26,4 +51,225 @@ public class Migration {
         return this.currentVersion;
     }
 
+    /**
+     * Return whether the history in dir needs migrateHistory before the store can
+     * open it. This only looks at which files exist and at the snapshot's header.
+     */
+    public static boolean needsHistoryMigration(File dir) {
+        int version = HistoryFile.readVersion(new File(dir, HISTORY_SNAPSHOT_FILE_NAME));
+        return new File(dir, LEGACY_HISTORY_FILE_NAME).exists() || version >= 0 && version != HistoryFile.VERSION;
+    }
+
+    /**
+     * Bring the history in dir up to date: upgrade the snapshot format and import
+     * the history written by earlier versions of the app. This can take a while for
+     * a long history, so call it off the main thread and before the store opens.
+     * Concurrent calls run one after the other, and the later ones find nothing
+     * left to do.
+     */
+    public static synchronized void migrateHistory(File dir, ImportProgress progress) {
+        upgradeHistory(dir);
+        importLegacyHistory(dir, progress);
+    }
+
+    /**
+     * Rewrite a history snapshot written in an older version of the format in the
+     * current one. The journal is left alone, since its records are complete
+     * transactions that replay over any snapshot. A snapshot that cannot be read
+     * is kept under a name carrying its version rather than discarded, so a build
+     * that understands it can still recover it.
+     */
+    static void upgradeHistory(File dir) {
+        File snapshot = new File(dir, HISTORY_SNAPSHOT_FILE_NAME);
+        int version = HistoryFile.readVersion(snapshot);
+        // Damaged snapshots are left for the store to set aside.
+        if (version < 0 || version == HistoryFile.VERSION) {
+            return;
+        }
+        try {
+            HistoryFile.write(snapshot, readOlderSnapshot(snapshot, version));
+        } catch (Throwable t) {
+            t.printStackTrace();
+            new File(snapshot.getPath() + ".tmp").delete();
+            snapshot.renameTo(new File(snapshot.getPath() + ".v" + version));
+        }
+    }
+
+    // Decode a snapshot written in an older version of the format, newest first.
+    // Whenever HistoryFile.VERSION is bumped, the reader for the layout it replaces
+    // moves here. Version 1 is the first, so any other version is one this build
+    // cannot read, such as one written by a newer build before a downgrade.
+    private static List<TransactionData> readOlderSnapshot(File snapshot, int version) throws IOException {
+        throw new IOException("No reader for transaction history version " + version);
+    }
+
+    // Import the Java serialized transaction history written by earlier versions
+    // into the history snapshot.
+    //
+    // The legacy list is deserialized one transaction at a time and merged into the
+    // snapshot in batches, so only one batch is held at once. Transactions the
+    // store already holds are newer than their legacy copies and are skipped, which
+    // leaves the journal valid as it is. Every batch is written to a temporary
+    // snapshot and renamed into place, and the legacy file is only deleted once
+    // all of them are in. If we die part way through, the next launch runs the
+    // import again and skips the batches that made it.
+    static void importLegacyHistory(File dir, ImportProgress progress) {
+        File legacy = new File(dir, LEGACY_HISTORY_FILE_NAME);
+        File snapshot = new File(dir, HISTORY_SNAPSHOT_FILE_NAME);
+        if (!legacy.exists()) {
+            return;
+        }
+        try {
+            // The journal is bounded by compaction, so its txids are cheap to keep.
+            TxidIndex journaled = new TxidIndex();
+            TransactionJournal journal = new TransactionJournal(new File(dir, HISTORY_JOURNAL_FILE_NAME));
+            try {
+                journal.replay(tx -> journaled.put(TransactionCodec.txidToBytes(tx.getTxid()), 0));
+            } finally {
+                journal.close();
+            }
+            LegacyImport batches = new LegacyImport(snapshot, journaled, progress);
+            LegacyReader in = new LegacyReader(legacy, batches);
+            try {
+                in.readObject();
+            } finally {
+                in.close();
+            }
+            batches.flush();
+            legacy.delete();
+        } catch (Throwable t) {
+            // Keep the old file around rather than lose it. The wallet will fetch
+            // the rest of the history again with GetTransactions. The batches
+            // already imported stay, since each was complete when it was renamed
+            // into place.
+            t.printStackTrace();
+            new File(snapshot.getPath() + ".tmp").delete();
+            legacy.renameTo(new File(legacy.getPath() + ".failed"));
+        }
+    }
+
+    /**
+     * LegacyReader reads the serialized list of an earlier version, handing each
+     * transaction to the import as soon as it is deserialized. The list itself
+     * is left holding nulls, so it never holds more than its array.
+     */
+    private static class LegacyReader extends ObjectInputStream {
+        private final LegacyImport batches;
+
+        LegacyReader(File legacy, LegacyImport batches) throws IOException {
+            super(new BufferedInputStream(new FileInputStream(legacy)));
+            this.batches = batches;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) throws IOException {
+            if (obj instanceof TransactionData) {
+                batches.add((TransactionData) obj);
+                return null;
+            }
+            return obj;
+        }
+    }
+
+    /**
+     * LegacyImport collects legacy transactions the store does not hold yet and
+     * merges each full batch into the snapshot.
+     */
+    private static class LegacyImport {
+        private final File file;
+        private final TxidIndex journaled;
+        private final ImportProgress progress;
+        private HistoryFile snapshot;
+        private final ArrayList<TransactionData> batch = new ArrayList<TransactionData>();
+        private final TxidIndex batched = new TxidIndex();
+        private int imported;
+
+        LegacyImport(File file, TxidIndex journaled, ImportProgress progress) throws IOException {
+            this.file = file;
+            this.journaled = journaled;
+            this.progress = progress;
+            this.snapshot = HistoryFile.open(file);
+        }
+
+        void add(TransactionData tx) throws IOException {
+            byte[] txid = TransactionCodec.txidToBytes(tx.getTxid());
+            if (journaled.get(txid) >= 0 || batched.get(txid) >= 0 || snapshot != null && snapshot.find(txid) >= 0) {
+                return;
+            }
+            batched.put(txid, 0);
+            batch.add(tx);
+            if (batch.size() >= IMPORT_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            Collections.sort(batch, Collections.reverseOrder());
+            MergedView merged = new MergedView(snapshot, batch);
+            HistoryFile.write(file, merged);
+            HistoryFile written = HistoryFile.open(file);
+            if (written.size() != merged.size()) {
+                throw new IOException("Imported " + written.size() + " of " + merged.size() + " transactions");
+            }
+            for (TransactionData tx : batch) {
+                if (written.find(TransactionCodec.txidToBytes(tx.getTxid())) < 0) {
+                    throw new IOException("Imported history is missing " + tx.getTxid());
+                }
+            }
+            snapshot = written;
+            imported += batch.size();
+            batch.clear();
+            batched.clear();
+            if (progress != null) {
+                progress.onImported(imported);
+            }
+        }
+    }
+
+    /**
+     * MergedView is a snapshot with a batch of new transactions merged into it in
+     * display order. Snapshot rows are decoded as they are asked for.
+     */
+    private static class MergedView extends AbstractList<TransactionData> {
+        private final HistoryFile snapshot;
+        private final List<TransactionData> batch;
+        // The snapshot row at each position, or -1 - k for batch row k.
+        private final int[] sources;
+
+        MergedView(HistoryFile snapshot, List<TransactionData> batch) {
+            this.snapshot = snapshot;
+            this.batch = batch;
+            int rows = snapshot != null ? snapshot.size() : 0;
+            this.sources = new int[rows + batch.size()];
+            int position = 0;
+            int row = 0;
+            for (int k = 0; k < batch.size(); k++) {
+                TransactionData tx = batch.get(k);
+                int before = snapshot != null ?
+                        snapshot.countBefore(tx.getTimestamp(), TransactionCodec.txidToBytes(tx.getTxid())) : 0;
+                for (; row < before; row++) {
+                    sources[position++] = row;
+                }
+                sources[position++] = -1 - k;
+            }
+            for (; row < rows; row++) {
+                sources[position++] = row;
+            }
+        }
+
+        @Override
+        public TransactionData get(int position) {
+            int source = sources[position];
+            return source < 0 ? batch.get(-1 - source) : snapshot.read(source);
+        }
+
+        @Override
+        public int size() {
+            return sources.length;
+        }
+    }
 }
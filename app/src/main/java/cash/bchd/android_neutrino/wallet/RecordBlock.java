@@ -0,0 +1,188 @@
+package cash.bchd.android_neutrino.wallet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * RecordBlock is a run of consecutive snapshot rows stored column by column.
+ * Rows are ordered by time, so heights and timestamps are written as zigzag
+ * varint deltas from the previous row and usually take a single byte. Amounts are
+ * zigzag varints and strings are StringDictionary ids. A block may additionally be
+ * compressed with Deflate when that makes it smaller.
+ *
+ * Layout: a codec byte, then for CODEC_DEFLATE the uncompressed length as a
+ * varint followed by the deflated body, otherwise the body itself. The body is
+ * the row count, the incoming flags as a bitmap and then one varint column each
+ * for height, timestamp, amount, memo, fiat amount, fiat currency and address.
+ * Txids are random and are kept in their own table by HistoryFile.
+ */
+public class RecordBlock {
+
+    public static final int ROWS_PER_BLOCK = 64;
+
+    private static final int CODEC_NONE = 0;
+    private static final int CODEC_DEFLATE = 1;
+
+    private final int size;
+    private final byte[] incoming;
+    private final int[] heights;
+    private final long[] timestamps;
+    private final long[] amounts;
+    private final int[] memos;
+    private final int[] fiatAmounts;
+    private final int[] fiatCurrencies;
+    private final int[] toAddresses;
+
+    private RecordBlock(int size) {
+        this.size = size;
+        this.incoming = new byte[(size + 7) / 8];
+        this.heights = new int[size];
+        this.timestamps = new long[size];
+        this.amounts = new long[size];
+        this.memos = new int[size];
+        this.fiatAmounts = new int[size];
+        this.fiatCurrencies = new int[size];
+        this.toAddresses = new int[size];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Build a TransactionData for row i of the block, resolving its strings
+     * through strings.
+     */
+    public TransactionData get(int i, String txid, TransactionCodec.Strings strings) {
+        boolean in = (incoming[i >>> 3] & (1 << (i & 7))) != 0;
+        return new TransactionData(txid, in, strings.get(memos[i]), amounts[i], strings.get(fiatAmounts[i]),
+                strings.get(fiatCurrencies[i]), timestamps[i], strings.get(toAddresses[i]), heights[i]);
+    }
+
+    /**
+     * Encode txs[from, to) as a block, adding their strings to dictionary.
+     */
+    public static byte[] encode(List<TransactionData> txs, int from, int to, StringDictionary dictionary,
+                                boolean deflate) {
+        int n = to - from;
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        TransactionCodec.writeVarint(body, n);
+        byte[] flags = new byte[(n + 7) / 8];
+        for (int i = 0; i < n; i++) {
+            if (txs.get(from + i).getIncoming()) {
+                flags[i >>> 3] |= 1 << (i & 7);
+            }
+        }
+        body.write(flags, 0, flags.length);
+        long previous = 0;
+        for (int i = from; i < to; i++) {
+            TransactionCodec.writeVarint(body, TransactionCodec.zigzag(txs.get(i).getHeight() - previous));
+            previous = txs.get(i).getHeight();
+        }
+        previous = 0;
+        for (int i = from; i < to; i++) {
+            TransactionCodec.writeVarint(body, TransactionCodec.zigzag(txs.get(i).getTimestamp() - previous));
+            previous = txs.get(i).getTimestamp();
+        }
+        for (int i = from; i < to; i++) {
+            TransactionCodec.writeVarint(body, TransactionCodec.zigzag(txs.get(i).getAmount()));
+        }
+        for (int i = from; i < to; i++) {
+            TransactionCodec.writeVarint(body, dictionary.intern(txs.get(i).getMemo()));
+        }
+        for (int i = from; i < to; i++) {
+            TransactionCodec.writeVarint(body, dictionary.intern(txs.get(i).getFiatAmount()));
+        }
+        for (int i = from; i < to; i++) {
+            TransactionCodec.writeVarint(body, dictionary.intern(txs.get(i).getFiatCurrency()));
+        }
+        for (int i = from; i < to; i++) {
+            TransactionCodec.writeVarint(body, dictionary.intern(txs.get(i).getToAddress()));
+        }
+
+        byte[] raw = body.toByteArray();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length + 1);
+        if (deflate) {
+            Deflater deflater = new Deflater();
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] buf = new byte[raw.length + 64];
+            int len = deflater.deflate(buf);
+            boolean finished = deflater.finished();
+            deflater.end();
+            // Only keep the deflated form if it wins.
+            if (finished && len + 5 < raw.length) {
+                out.write(CODEC_DEFLATE);
+                TransactionCodec.writeVarint(out, raw.length);
+                out.write(buf, 0, len);
+                return out.toByteArray();
+            }
+        }
+        out.write(CODEC_NONE);
+        out.write(raw, 0, raw.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode the block that starts at offset in buf and is length bytes long.
+     */
+    public static RecordBlock decode(ByteBuffer buf, int offset, int length) throws IOException {
+        ByteBuffer in = buf.duplicate();
+        in.position(offset + 1);
+        in.limit(offset + length);
+        int codec = buf.get(offset);
+        if (codec == CODEC_DEFLATE) {
+            int rawLength = (int) TransactionCodec.readVarint(in);
+            byte[] compressed = new byte[in.remaining()];
+            in.get(compressed);
+            byte[] raw = new byte[rawLength];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                if (inflater.inflate(raw) != rawLength) {
+                    throw new IOException("Truncated record block");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt record block", e);
+            } finally {
+                inflater.end();
+            }
+            in = ByteBuffer.wrap(raw);
+        } else if (codec != CODEC_NONE) {
+            throw new IOException("Unknown record block codec " + codec);
+        }
+
+        RecordBlock block = new RecordBlock((int) TransactionCodec.readVarint(in));
+        int n = block.size;
+        in.get(block.incoming);
+        long previous = 0;
+        for (int i = 0; i < n; i++) {
+            previous += TransactionCodec.unzigzag(TransactionCodec.readVarint(in));
+            block.heights[i] = (int) previous;
+        }
+        previous = 0;
+        for (int i = 0; i < n; i++) {
+            previous += TransactionCodec.unzigzag(TransactionCodec.readVarint(in));
+            block.timestamps[i] = previous;
+        }
+        for (int i = 0; i < n; i++) {
+            block.amounts[i] = TransactionCodec.unzigzag(TransactionCodec.readVarint(in));
+        }
+        readIds(in, block.memos);
+        readIds(in, block.fiatAmounts);
+        readIds(in, block.fiatCurrencies);
+        readIds(in, block.toAddresses);
+        return block;
+    }
+
+    private static void readIds(ByteBuffer in, int[] ids) {
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = (int) TransactionCodec.readVarint(in);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package cash.bchd.android_neutrino.wallet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+/**
+ * RpcDeadlines gives every unary call to the wallet daemon a deadline, so a hung
+ * daemon fails the call with DEADLINE_EXCEEDED instead of blocking the caller
+ * forever. Deadlines are set per method, by the method's name in api.proto, and
+ * applied when each call starts, which lets the stubs themselves be built once.
+ * Streaming calls such as the transaction notifications stay open indefinitely.
+ *
+ * It also counts the calls made to each method and how many of them ran out of
+ * time.
+ */
+public class RpcDeadlines implements ClientInterceptor {
+
+    public static final long DEFAULT_DEADLINE_MS = 10000;
+
+    private final HashMap<String, Long> deadlines = new HashMap<String, Long>();
+    // Calls and deadline exceeded failures per method.
+    private final TreeMap<String, long[]> counts = new TreeMap<String, long[]>();
+
+    /**
+     * Set the deadline for calls to method, such as "Balance". A deadline of
+     * zero lets the calls run for as long as they take.
+     */
+    public synchronized void setDeadline(String method, long millis) {
+        deadlines.put(method, millis);
+    }
+
+    public synchronized long getDeadline(String method) {
+        Long millis = deadlines.get(method);
+        return millis != null ? millis : DEFAULT_DEADLINE_MS;
+    }
+
+    /**
+     * Return the names of the methods that have been called, in order.
+     */
+    public synchronized List<String> getMethods() {
+        return new ArrayList<String>(counts.keySet());
+    }
+
+    public synchronized long getCalls(String method) {
+        long[] c = counts.get(method);
+        return c != null ? c[0] : 0;
+    }
+
+    public synchronized long getDeadlineExceeded(String method) {
+        long[] c = counts.get(method);
+        return c != null ? c[1] : 0;
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                               CallOptions callOptions, Channel next) {
+        String fullName = method.getFullMethodName();
+        String name = fullName.substring(fullName.lastIndexOf('/') + 1);
+        long millis = getDeadline(name);
+        if (method.getType() == MethodDescriptor.MethodType.UNARY && millis > 0 && callOptions.getDeadline() == null) {
+            callOptions = callOptions.withDeadlineAfter(millis, TimeUnit.MILLISECONDS);
+        }
+        return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(next.newCall(method, callOptions)) {
+            @Override
+            public void start(Listener<RespT> responseListener, Metadata headers) {
+                super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(responseListener) {
+                    @Override
+                    public void onClose(Status status, Metadata trailers) {
+                        record(name, status);
+                        super.onClose(status, trailers);
+                    }
+                }, headers);
+            }
+        };
+    }
+
+    private synchronized void record(String method, Status status) {
+        long[] c = counts.get(method);
+        if (c == null) {
+            c = new long[2];
+            counts.put(method, c);
+        }
+        c[0]++;
+        if (status.getCode() == Status.Code.DEADLINE_EXCEEDED) {
+            c[1]++;
+        }
+    }
+
+    // Each method is listed as name=calls/deadlineExceeded.
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("RpcDeadlines{");
+        String sep = "";
+        for (Map.Entry<String, long[]> e : counts.entrySet()) {
+            sb.append(sep).append(e.getKey()).append("=").append(e.getValue()[0])
+                    .append("/").append(e.getValue()[1]);
+            sep = ", ";
+        }
+        return sb.append("}").toString();
+    }
+}
@@ -0,0 +1,45 @@
+package cash.bchd.android_neutrino.wallet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * SearchTokenizer splits the searchable fields of a transaction, its memo and
+ * address, into lower case tokens of letters and digits. The same rules are used
+ * for queries so that a query token matches any indexed token it is a prefix of.
+ */
+public class SearchTokenizer {
+
+    public static List<String> tokenize(TransactionData tx) {
+        List<String> tokens = tokenize(tx.getMemo());
+        for (String token : tokenize(tx.getToAddress())) {
+            if (!tokens.contains(token)) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<String>();
+        if (text == null) {
+            return tokens;
+        }
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String token = lower.substring(start, i);
+                if (!tokens.contains(token)) {
+                    tokens.add(token);
+                }
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
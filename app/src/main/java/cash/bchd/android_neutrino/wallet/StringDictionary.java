@@ -0,0 +1,49 @@
+package cash.bchd.android_neutrino.wallet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * StringDictionary assigns small integer ids to strings so that values which repeat
+ * across many transactions, such as the fiat currency code or a regular payee's
+ * address, are held once and referenced by id. Id 0 is reserved for null.
+ */
+public class StringDictionary implements TransactionCodec.Strings {
+
+    public static final int NULL_ID = 0;
+
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    private final ArrayList<String> strings = new ArrayList<String>();
+
+    public StringDictionary() {
+        strings.add(null);
+    }
+
+    /**
+     * Return the id for s, adding it to the dictionary if it is new.
+     */
+    public int intern(String s) {
+        if (s == null) {
+            return NULL_ID;
+        }
+        Integer id = ids.get(s);
+        if (id == null) {
+            id = strings.size();
+            ids.put(s, id);
+            strings.add(s);
+        }
+        return id;
+    }
+
+    @Override
+    public String get(int id) {
+        return strings.get(id);
+    }
+
+    /**
+     * The number of ids in use, including the null id.
+     */
+    public int size() {
+        return strings.size();
+    }
+}
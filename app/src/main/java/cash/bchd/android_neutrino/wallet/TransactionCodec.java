@@ -0,0 +1,156 @@
+package cash.bchd.android_neutrino.wallet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * TransactionCodec converts TransactionData to and from the compact binary record
+ * used by the on-disk transaction history. Integers are written as LEB128 varints
+ * (zigzag encoded where they may be negative) and the txid is stored as its 32 raw
+ * bytes rather than as a hex string.
+ *
+ * History snapshots store the same fields column by column, see RecordBlock.
+ */
+public class TransactionCodec {
+
+    public static final int TXID_LENGTH = 32;
+
+    private static final int FLAG_INCOMING = 1;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Strings resolves StringDictionary ids back to strings.
+     */
+    public interface Strings {
+        String get(int id);
+    }
+
+    /**
+     * Append the encoded form of tx to out.
+     */
+    public static void encode(TransactionData tx, ByteArrayOutputStream out) {
+        out.write(txidToBytes(tx.getTxid()), 0, TXID_LENGTH);
+        out.write(tx.getIncoming() ? FLAG_INCOMING : 0);
+        writeVarint(out, tx.getHeight());
+        writeVarint(out, tx.getTimestamp());
+        writeVarint(out, zigzag(tx.getAmount()));
+        writeString(out, tx.getMemo());
+        writeString(out, tx.getFiatAmount());
+        writeString(out, tx.getFiatCurrency());
+        writeString(out, tx.getToAddress());
+    }
+
+    /**
+     * Decode a single record starting at the buffer's position. The position is
+     * left at the end of the record.
+     */
+    public static TransactionData decode(ByteBuffer buf) {
+        String txid = txidToString(buf, buf.position());
+        buf.position(buf.position() + TXID_LENGTH);
+        boolean incoming = (buf.get() & FLAG_INCOMING) != 0;
+        int height = (int) readVarint(buf);
+        long timestamp = readVarint(buf);
+        long amount = unzigzag(readVarint(buf));
+        String memo = readString(buf);
+        String fiatAmount = readString(buf);
+        String fiatCurrency = readString(buf);
+        String toAddress = readString(buf);
+        return new TransactionData(txid, incoming, memo, amount, fiatAmount, fiatCurrency, timestamp, toAddress, height);
+    }
+
+    public static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    public static long readVarint(ByteBuffer buf) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 63) {
+                throw new IllegalArgumentException("Malformed varint");
+            }
+        }
+    }
+
+    public static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // Strings are prefixed with their UTF-8 length plus one so that a zero
+    // length can stand in for null.
+    public static void writeString(ByteArrayOutputStream out, String s) {
+        if (s == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, b.length + 1);
+        out.write(b, 0, b.length);
+    }
+
+    public static String readString(ByteBuffer buf) {
+        int len = (int) readVarint(buf);
+        if (len == 0) {
+            return null;
+        }
+        len--;
+        String s;
+        if (buf.hasArray()) {
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+        } else {
+            byte[] b = new byte[len];
+            buf.duplicate().get(b);
+            s = new String(b, StandardCharsets.UTF_8);
+        }
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    /**
+     * Convert a hex encoded txid to its 32 raw bytes.
+     */
+    public static byte[] txidToBytes(String txid) {
+        if (txid == null || txid.length() != TXID_LENGTH * 2) {
+            throw new IllegalArgumentException("Invalid txid: " + txid);
+        }
+        byte[] b = new byte[TXID_LENGTH];
+        for (int i = 0; i < TXID_LENGTH; i++) {
+            int hi = Character.digit(txid.charAt(i * 2), 16);
+            int lo = Character.digit(txid.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("Invalid txid: " + txid);
+            }
+            b[i] = (byte) ((hi << 4) | lo);
+        }
+        return b;
+    }
+
+    /**
+     * Hex encode the 32 raw txid bytes found at offset in buf.
+     */
+    public static String txidToString(ByteBuffer buf, int offset) {
+        char[] c = new char[TXID_LENGTH * 2];
+        for (int i = 0; i < TXID_LENGTH; i++) {
+            int b = buf.get(offset + i) & 0xFF;
+            c[i * 2] = HEX[b >>> 4];
+            c[i * 2 + 1] = HEX[b & 0x0F];
+        }
+        return new String(c);
+    }
+}
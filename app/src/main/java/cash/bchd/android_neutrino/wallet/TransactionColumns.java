@@ -0,0 +1,287 @@
+package cash.bchd.android_neutrino.wallet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * TransactionColumns holds a list of transactions as parallel primitive arrays
+ * instead of one object per transaction. Txids are packed as raw bytes and the
+ * string fields are ids into a shared StringDictionary, so a row costs around
+ * seventy bytes plus whatever strings are unique to it.
+ *
+ * Rows are read through a Row flyweight which can be moved from row to row
+ * without allocating.
+ */
+public class TransactionColumns {
+
+    private static final int MIN_CAPACITY = 16;
+    private static final int TXID_LENGTH = TransactionCodec.TXID_LENGTH;
+
+    // The string fields of each row.
+    private static final int STRINGS_PER_ROW = 4;
+
+    // Only ever grows until it is rebuilt by compactStrings() or clear().
+    private StringDictionary strings = new StringDictionary();
+
+    private int size;
+    private byte[] txids;
+    private long[] amounts;
+    private long[] timestamps;
+    private int[] heights;
+    private int[] memos;
+    private int[] fiatAmounts;
+    private int[] fiatCurrencies;
+    private int[] toAddresses;
+    private BitSet incoming = new BitSet();
+
+    public TransactionColumns() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Row is a view of a single row. It reflects the row's current contents and is
+     * only valid until the columns are next modified.
+     */
+    public class Row {
+        private int index;
+
+        public Row moveTo(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("row " + index + " of " + size);
+            }
+            this.index = index;
+            return this;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getTxid() {
+            return TransactionCodec.txidToString(ByteBuffer.wrap(txids), index * TXID_LENGTH);
+        }
+
+        public boolean getIncoming() {
+            return incoming.get(index);
+        }
+
+        public String getMemo() {
+            return strings.get(memos[index]);
+        }
+
+        public long getAmount() {
+            return amounts[index];
+        }
+
+        public String getFiatAmount() {
+            return strings.get(fiatAmounts[index]);
+        }
+
+        public String getFiatCurrency() {
+            return strings.get(fiatCurrencies[index]);
+        }
+
+        public long getTimestamp() {
+            return timestamps[index];
+        }
+
+        public String getToAddress() {
+            return strings.get(toAddresses[index]);
+        }
+
+        public int getHeight() {
+            return heights[index];
+        }
+    }
+
+    public Row newRow() {
+        return new Row();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return a stable 64 bit id for the row at index, taken from the first eight
+     * bytes of its txid. Txids are hashes, so these are as good as random and the
+     * same transaction always gets the same id wherever it appears in the list.
+     */
+    public long getId(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("row " + index + " of " + size);
+        }
+        return ByteBuffer.wrap(txids).getLong(index * TXID_LENGTH);
+    }
+
+    /**
+     * Build a standalone TransactionData for the row at index.
+     */
+    public TransactionData get(int index) {
+        Row row = newRow().moveTo(index);
+        return new TransactionData(row.getTxid(), row.getIncoming(), row.getMemo(), row.getAmount(),
+                row.getFiatAmount(), row.getFiatCurrency(), row.getTimestamp(), row.getToAddress(),
+                row.getHeight());
+    }
+
+    public void add(TransactionData tx) {
+        add(size, tx);
+    }
+
+    public void addAll(List<TransactionData> txs) {
+        addAll(size, txs);
+    }
+
+    /**
+     * Insert txs at index, shifting the rows at and after it down.
+     */
+    public void addAll(int index, List<TransactionData> txs) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("row " + index + " of " + size);
+        }
+        int n = txs.size();
+        ensureCapacity(size + n);
+        shift(index, index + n, size - index);
+        size += n;
+        for (int i = 0; i < n; i++) {
+            write(index + i, txs.get(i));
+        }
+        compactStrings();
+    }
+
+    /**
+     * Insert tx at index, shifting the rows at and after it down by one.
+     */
+    public void add(int index, TransactionData tx) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("row " + index + " of " + size);
+        }
+        ensureCapacity(size + 1);
+        shift(index, index + 1, size - index);
+        size++;
+        write(index, tx);
+        compactStrings();
+    }
+
+    /**
+     * Remove the row at index, shifting the rows after it up by one.
+     */
+    public void remove(int index) {
+        removeRange(index, index + 1);
+    }
+
+    /**
+     * Remove the rows from index from up to but not including to.
+     */
+    public void removeRange(int from, int to) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("rows " + from + " to " + to + " of " + size);
+        }
+        shift(to, from, size - to);
+        incoming.clear(size - (to - from), size);
+        size -= to - from;
+        compactStrings();
+    }
+
+    public void clear() {
+        incoming.clear();
+        size = 0;
+        strings = new StringDictionary();
+    }
+
+    // Move count rows starting at from so they start at to.
+    private void shift(int from, int to, int count) {
+        if (count <= 0 || from == to) {
+            return;
+        }
+        System.arraycopy(txids, from * TXID_LENGTH, txids, to * TXID_LENGTH, count * TXID_LENGTH);
+        System.arraycopy(amounts, from, amounts, to, count);
+        System.arraycopy(timestamps, from, timestamps, to, count);
+        System.arraycopy(heights, from, heights, to, count);
+        System.arraycopy(memos, from, memos, to, count);
+        System.arraycopy(fiatAmounts, from, fiatAmounts, to, count);
+        System.arraycopy(fiatCurrencies, from, fiatCurrencies, to, count);
+        System.arraycopy(toAddresses, from, toAddresses, to, count);
+        BitSet flags = incoming.get(from, from + count);
+        incoming.clear(Math.min(from, to), Math.max(from, to) + count);
+        for (int i = flags.nextSetBit(0); i >= 0; i = flags.nextSetBit(i + 1)) {
+            incoming.set(to + i);
+        }
+    }
+
+    /**
+     * Overwrite the row at index with tx.
+     */
+    public void set(int index, TransactionData tx) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("row " + index + " of " + size);
+        }
+        write(index, tx);
+        compactStrings();
+    }
+
+    private void write(int index, TransactionData tx) {
+        System.arraycopy(TransactionCodec.txidToBytes(tx.getTxid()), 0, txids, index * TXID_LENGTH, TXID_LENGTH);
+        amounts[index] = tx.getAmount();
+        timestamps[index] = tx.getTimestamp();
+        heights[index] = tx.getHeight();
+        memos[index] = strings.intern(tx.getMemo());
+        fiatAmounts[index] = strings.intern(tx.getFiatAmount());
+        fiatCurrencies[index] = strings.intern(tx.getFiatCurrency());
+        toAddresses[index] = strings.intern(tx.getToAddress());
+        incoming.set(index, tx.getIncoming());
+    }
+
+    // Rebuild the dictionary from the rows still held once most of its strings
+    // only belonged to rows that have since been removed or overwritten. Each
+    // rebuild follows at least as many new strings as there are rows, so the cost
+    // is spread across the changes that made it necessary.
+    private void compactStrings() {
+        if (strings.size() <= 2 * STRINGS_PER_ROW * size + MIN_CAPACITY) {
+            return;
+        }
+        StringDictionary old = strings;
+        strings = new StringDictionary();
+        for (int i = 0; i < size; i++) {
+            memos[i] = strings.intern(old.get(memos[i]));
+            fiatAmounts[i] = strings.intern(old.get(fiatAmounts[i]));
+            fiatCurrencies[i] = strings.intern(old.get(fiatCurrencies[i]));
+            toAddresses[i] = strings.intern(old.get(toAddresses[i]));
+        }
+    }
+
+    /**
+     * The number of strings held for the rows, for testing.
+     */
+    int stringCount() {
+        return strings.size();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= heights.length) {
+            return;
+        }
+        int n = Math.max(capacity, heights.length * 2);
+        txids = Arrays.copyOf(txids, n * TXID_LENGTH);
+        amounts = Arrays.copyOf(amounts, n);
+        timestamps = Arrays.copyOf(timestamps, n);
+        heights = Arrays.copyOf(heights, n);
+        memos = Arrays.copyOf(memos, n);
+        fiatAmounts = Arrays.copyOf(fiatAmounts, n);
+        fiatCurrencies = Arrays.copyOf(fiatCurrencies, n);
+        toAddresses = Arrays.copyOf(toAddresses, n);
+    }
+
+    private void allocate(int capacity) {
+        txids = new byte[capacity * TXID_LENGTH];
+        amounts = new long[capacity];
+        timestamps = new long[capacity];
+        heights = new int[capacity];
+        memos = new int[capacity];
+        fiatAmounts = new int[capacity];
+        fiatCurrencies = new int[capacity];
+        toAddresses = new int[capacity];
+    }
+}
@@ -2,16 +2,25 @@ package cash.bchd.android_neutrino.wallet;
 
 import java.io.Serializable;
 
+/**
+ * TransactionData is immutable. The same instance is shared by the store, the
+ * adapter and the persister's background thread, so an update always produces
+ * a new copy instead of changing one that another thread may be reading.
+ */
 public class TransactionData implements Serializable, Comparable<TransactionData> {
-    private String txid;
-    private boolean incoming;
-    private String memo;
-    private long amount;
-    private String fiatAmount;
-    private String fiatCurrency;
-    private long timestamp;
-    private String toAddress;
-    private int height;
+    // Pinned to the value computed for the original class so that histories
+    // serialized by earlier versions can still be migrated after fields change.
+    private static final long serialVersionUID = 9222781885561699409L;
+
+    private final String txid;
+    private final boolean incoming;
+    private final String memo;
+    private final long amount;
+    private final String fiatAmount;
+    private final String fiatCurrency;
+    private final long timestamp;
+    private final String toAddress;
+    private final int height;
 
     public TransactionData(String txid, boolean incoming, String memo, long amount, String fiatAmount,
                            String fiatCurrency, long timestamp, String toAddress, int height) {
@@ -63,26 +72,15 @@ public class TransactionData implements Serializable, Comparable<TransactionData
         return this.height;
     }
 
-    public void setFiatCurrency(String fiatCurrency) {
-        this.fiatCurrency = fiatCurrency;
-    }
-
-    public void setFiatAmount(String fiatAmount) {
-        this.fiatAmount = fiatAmount;
-    }
-
-    public void setMemo(String memo) {
-        this.memo = memo;
-    }
-
-    public void setHeight(int height) {
-        this.height = height;
-    }
-
-    public void setAmount(long amount) {
-        this.amount = amount;
+    /**
+     * Return a copy of this transaction valued at fiatAmount in fiatCurrency.
+     */
+    public TransactionData withFiat(String fiatAmount, String fiatCurrency) {
+        return new TransactionData(txid, incoming, memo, amount, fiatAmount, fiatCurrency, timestamp, toAddress, height);
     }
 
+    // Transactions are ordered by timestamp and then by txid, so two transactions
+    // from the same second always sort the same way.
     @Override
     public int compareTo(TransactionData td) {
         if (this.timestamp > td.timestamp) {
@@ -90,6 +88,6 @@ public class TransactionData implements Serializable, Comparable<TransactionData
         } else if (this.timestamp < td.timestamp) {
             return -1;
         }
-        return 0;
+        return this.txid.compareTo(td.txid);
     }
 }
@@ -0,0 +1,222 @@
+package cash.bchd.android_neutrino.wallet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.zip.CRC32;
+
+/**
+ * TransactionJournal is an append-only log of transaction records. Adding or
+ * updating a transaction costs a single appended record instead of rewriting the
+ * whole history. When a transaction is written more than once the last record wins,
+ * and rewrite() compacts the log down to one record per transaction.
+ *
+ * Each record has a fixed nine byte header (payload length, CRC32 and record type)
+ * followed by a payload produced by TransactionCodec.
+ *
+ * Appends are synced to disk before they return. If the process dies in the middle
+ * of an append the torn record fails its checksum, replay stops in front of it and
+ * the next append truncates it away, so a crash loses at most the batch that was
+ * being written.
+ */
+public class TransactionJournal implements Closeable {
+
+    private static final int MAGIC = 0x54584a4c; // "TXJL"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 9;
+
+    private static final byte TYPE_PUT = 1;
+
+    private final File file;
+    private FileOutputStream out;
+    private int recordCount;
+
+    // The length of the intact prefix of the file as found by replay().
+    private long validLength;
+
+    public interface Visitor {
+        void onPut(TransactionData tx);
+    }
+
+    public TransactionJournal(File file) {
+        this.file = file;
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * The number of records in the journal, including superseded ones. Only valid
+     * after replay() or rewrite().
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Replay every intact record in the order it was written. Reading stops at the
+     * first record that is truncated or fails its checksum.
+     */
+    public void replay(Visitor visitor) throws IOException {
+        recordCount = 0;
+        validLength = 0;
+        if (!file.exists()) {
+            return;
+        }
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        if (buf.remaining() < FILE_HEADER_SIZE) {
+            // The file header itself was torn. There is nothing to recover.
+            return;
+        }
+        if (buf.getInt() != MAGIC) {
+            throw new IOException("Not a transaction journal: " + file);
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported transaction journal version " + version);
+        }
+        CRC32 crc = new CRC32();
+        while (buf.remaining() >= RECORD_HEADER_SIZE) {
+            int start = buf.position();
+            int length = buf.getInt();
+            int checksum = buf.getInt();
+            if (length < 0 || buf.remaining() < length + 1) {
+                buf.position(start);
+                break;
+            }
+            crc.reset();
+            crc.update(data, buf.position(), length + 1);
+            if ((int) crc.getValue() != checksum) {
+                buf.position(start);
+                break;
+            }
+            byte type = buf.get();
+            int end = buf.position() + length;
+            if (type == TYPE_PUT) {
+                visitor.onPut(TransactionCodec.decode(buf));
+            }
+            buf.position(end);
+            recordCount++;
+        }
+        validLength = buf.position();
+    }
+
+    /**
+     * Append one record per transaction with a single write.
+     */
+    public void append(Collection<TransactionData> txs) throws IOException {
+        if (out == null) {
+            if (validLength == 0) {
+                rewrite(txs);
+                return;
+            }
+            truncateTornTail();
+            out = new FileOutputStream(file, true);
+        }
+        byte[] records = encode(txs, false);
+        try {
+            out.write(records);
+            out.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            // Reopen on the next append so a partial write gets truncated.
+            close();
+            throw e;
+        }
+        validLength += records.length;
+        recordCount += txs.size();
+    }
+
+    // Drop anything after the last intact record so that new records are not
+    // hidden behind a torn one.
+    private void truncateTornTail() throws IOException {
+        if (file.length() <= validLength) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(validLength);
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Replace the journal with exactly one record per transaction. The new journal
+     * is synced to a temporary file and renamed into place.
+     */
+    public void rewrite(Collection<TransactionData> txs) throws IOException {
+        close();
+        byte[] data = encode(txs, true);
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp, false);
+        try {
+            fos.write(data);
+            fos.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+        HistoryFile.syncDirectory(file.getParentFile());
+        validLength = data.length;
+        recordCount = txs.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private static byte[] encode(Collection<TransactionData> txs, boolean withFileHeader) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        if (withFileHeader) {
+            header.putInt(MAGIC).putInt(VERSION);
+            out.write(header.array(), 0, FILE_HEADER_SIZE);
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        CRC32 crc = new CRC32();
+        for (TransactionData tx : txs) {
+            payload.reset();
+            payload.write(TYPE_PUT);
+            TransactionCodec.encode(tx, payload);
+            byte[] p = payload.toByteArray();
+            crc.reset();
+            crc.update(p, 0, p.length);
+            header.clear();
+            header.putInt(p.length - 1).putInt((int) crc.getValue());
+            out.write(header.array(), 0, 8);
+            out.write(p, 0, p.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,107 @@
+package cash.bchd.android_neutrino.wallet;
+
+import java.util.Arrays;
+
+/**
+ * TxidIndex maps raw 32 byte txids to int values using open addressing. Keys are
+ * packed into a single byte array so the index holds no per-entry objects and
+ * lookups never build hex strings.
+ */
+public class TxidIndex {
+
+    private static final int KEY_LENGTH = TransactionCodec.TXID_LENGTH;
+    private static final int MIN_CAPACITY = 16;
+
+    private byte[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    public TxidIndex() {
+        allocate(MIN_CAPACITY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the value stored for txid or -1 if it is not in the index.
+     */
+    public int get(byte[] txid) {
+        int slot = hash(txid) & mask;
+        while (values[slot] >= 0) {
+            if (keyEquals(slot, txid)) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Store a non-negative value for txid, replacing any previous value.
+     */
+    public void put(byte[] txid, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("value must not be negative");
+        }
+        int slot = hash(txid) & mask;
+        while (values[slot] >= 0) {
+            if (keyEquals(slot, txid)) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        System.arraycopy(txid, 0, keys, slot * KEY_LENGTH, KEY_LENGTH);
+        values[slot] = value;
+        size++;
+        if (size * 2 > values.length) {
+            grow();
+        }
+    }
+
+    public void clear() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Txids are already uniformly distributed hashes so the first four bytes make a
+     * good bucket hash. This is also used to lay out the table in HistoryFile.
+     */
+    public static int hash(byte[] txid) {
+        return ((txid[0] & 0xFF) << 24) | ((txid[1] & 0xFF) << 16) | ((txid[2] & 0xFF) << 8) | (txid[3] & 0xFF);
+    }
+
+    private boolean keyEquals(int slot, byte[] txid) {
+        int offset = slot * KEY_LENGTH;
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            if (keys[offset + i] != txid[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void allocate(int capacity) {
+        keys = new byte[capacity * KEY_LENGTH];
+        values = new int[capacity];
+        Arrays.fill(values, -1);
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private void grow() {
+        byte[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(oldValues.length * 2);
+        byte[] key = new byte[KEY_LENGTH];
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] >= 0) {
+                System.arraycopy(oldKeys, i * KEY_LENGTH, key, 0, KEY_LENGTH);
+                put(key, oldValues[i]);
+            }
+        }
+    }
+}
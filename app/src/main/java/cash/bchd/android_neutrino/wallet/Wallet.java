@@ -15,9 +15,15 @@ import java.io.Serializable;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import io.grpc.Channel;
+import io.grpc.ClientInterceptors;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.stub.StreamObserver;
@@ -42,13 +48,26 @@ public class Wallet implements Serializable {
     public static final io.grpc.Context.Key<String> AUTH_TOKEN_KEY = io.grpc.Context.key("AuthenticationToken");
     private AuthCredentials creds;
 
+    // The stubs are built once and shared by every call. RpcDeadlines adds each
+    // call's deadline as it starts.
+    private final RpcDeadlines deadlines = new RpcDeadlines();
+    private WalletServiceGrpc.WalletServiceBlockingStub walletStub;
+    private WalletServiceGrpc.WalletServiceFutureStub walletFutureStub;
+    private WalletServiceGrpc.WalletServiceStub walletAsyncStub;
+    private WalletLoaderServiceGrpc.WalletLoaderServiceBlockingStub loaderStub;
+    private WalletLoaderServiceGrpc.WalletLoaderServiceFutureStub loaderFutureStub;
+
     public final static String DEFAULT_PASSPHRASE = "LETMEIN";
 
     private final String MAINNET_URI_PREFIX = "bitcoincash:";
 
     private HashMap<String, AddressListener> addressListeners = new HashMap<String, AddressListener>();
     private HashMap<ByteString, String[]> metadataCache = new HashMap<ByteString, String[]>();
-    private List<WalletEventListener> blockchainListeners = new ArrayList<WalletEventListener>();
+    private List<WalletEventListener> blockchainListeners = new CopyOnWriteArrayList<WalletEventListener>();
+    // Listeners that have been removed. The notification streams opened for them
+    // stay open for the other listeners but stop calling them.
+    private Set<WalletEventListener> removedListeners =
+            Collections.newSetFromMap(new ConcurrentHashMap<WalletEventListener, Boolean>());
 
     private int lastBlockHeight;
     private String lastBlockHash;
@@ -64,6 +83,7 @@ public class Wallet implements Serializable {
         this.getConfigFilePath = config.getConfigFilePath();
         this.creds = new AuthCredentials(config.getAuthToken());
         this.channel = ManagedChannelBuilder.forAddress(this.host, this.port).usePlaintext().build();
+        buildStubs();
         instance = this;
         try {
             config.save(context);
@@ -77,6 +97,41 @@ public class Wallet implements Serializable {
         directory.mkdirs();
     }
 
+    private void buildStubs() {
+        // Ping is retried until the daemon answers, so it gives up quickly.
+        deadlines.setDeadline("Ping", 2000);
+        // These derive keys or sign, which takes a while on a slow phone.
+        deadlines.setDeadline("CreateWallet", 60000);
+        deadlines.setDeadline("ChangePassphrase", 30000);
+        deadlines.setDeadline("CreateTransaction", 30000);
+        deadlines.setDeadline("SignTransaction", 30000);
+        deadlines.setDeadline("SweepAccount", 30000);
+        // These wait on the network or on a merchant's server.
+        deadlines.setDeadline("PublishTransaction", 30000);
+        deadlines.setDeadline("PostPayment", 60000);
+        deadlines.setDeadline("DownloadPaymentRequest", 60000);
+        deadlines.setDeadline("GetTransactions", 60000);
+        // A rescan reports its progress through its own stream and can take a long
+        // time on a big wallet, but a daemon that never answers must not hold the
+        // call open forever.
+        deadlines.setDeadline("Rescan", 15 * 60 * 1000);
+
+        Channel intercepted = ClientInterceptors.intercept(channel, deadlines);
+        walletStub = WalletServiceGrpc.newBlockingStub(intercepted).withCallCredentials(creds);
+        walletFutureStub = WalletServiceGrpc.newFutureStub(intercepted).withCallCredentials(creds);
+        walletAsyncStub = WalletServiceGrpc.newStub(intercepted).withCallCredentials(creds);
+        loaderStub = WalletLoaderServiceGrpc.newBlockingStub(intercepted).withCallCredentials(creds);
+        loaderFutureStub = WalletLoaderServiceGrpc.newFutureStub(intercepted).withCallCredentials(creds);
+    }
+
+    /**
+     * Return the per method deadlines, which may be changed, along with the
+     * number of calls that exceeded them.
+     */
+    public RpcDeadlines getRpcDeadlines() {
+        return deadlines;
+    }
+
     public static Wallet getInstance() {
         return instance;
     }
@@ -93,7 +148,6 @@ public class Wallet implements Serializable {
                     if (mnemonicToSet.equals("")) {
                         mnemonicToSet = generateMnemonic();
                     }
-                    WalletLoaderServiceGrpc.WalletLoaderServiceFutureStub stub = WalletLoaderServiceGrpc.newFutureStub(this.channel).withCallCredentials(this.creds);
                     ByteString pw = ByteString.copyFromUtf8(DEFAULT_PASSPHRASE);
 
                     Api.CreateWalletRequest request = Api.CreateWalletRequest.newBuilder()
@@ -101,7 +155,7 @@ public class Wallet implements Serializable {
                             .setMnemonicSeed(mnemonicToSet)
                             .setWalletBirthday(this.config.getBirthday())
                             .build();
-                    stub.createWallet(request);
+                    loaderFutureStub.createWallet(request);
                     listener.onWalletCreated(mnemonicToSet);
                     break;
                 } else {
@@ -114,9 +168,8 @@ public class Wallet implements Serializable {
             public void run(){
                 while (true) {
                     try {
-                        WalletServiceGrpc.WalletServiceBlockingStub stub = WalletServiceGrpc.newBlockingStub(channel).withCallCredentials(creds);
                         Api.PingRequest request = Api.PingRequest.newBuilder().build();
-                        stub.ping(request);
+                        walletStub.ping(request);
                         listener.onWalletReady();
                         listener.onBalanceChange(balance());
                         getTransactions(listener);
@@ -152,9 +205,8 @@ public class Wallet implements Serializable {
 
         listenRescan(listener);
 
-        WalletServiceGrpc.WalletServiceStub stub = WalletServiceGrpc.newStub(channel).withCallCredentials(creds);
         Api.TransactionNotificationsRequest request = Api.TransactionNotificationsRequest.newBuilder().build();
-        stub.transactionNotifications(request, new StreamObserver<Api.TransactionNotificationsResponse>() {
+        walletAsyncStub.transactionNotifications(request, new StreamObserver<Api.TransactionNotificationsResponse>() {
             @Override
             public void onNext(Api.TransactionNotificationsResponse value) {
                 List<Api.BlockDetails> blocks = value.getAttachedBlocksList();
@@ -180,8 +232,10 @@ public class Wallet implements Serializable {
                                     addrListener.onPaymentReceived(output.getAmount());
                                 }
                             }
-                            TransactionData td = extractTransactionData(tx, block.getHeight(), block.getTimestamp());
-                            listener.onTransaction(td);
+                            if (!removedListeners.contains(listener)) {
+                                TransactionData td = extractTransactionData(tx, block.getHeight(), block.getTimestamp());
+                                listener.onTransaction(td);
+                            }
                         }
                     }
                 }
@@ -196,12 +250,14 @@ public class Wallet implements Serializable {
                                 addrListener.onPaymentReceived(output.getAmount());
                             }
                         }
-                        TransactionData td = extractTransactionData(tx, 0, System.currentTimeMillis()/1000);
-                        listener.onTransaction(td);
+                        if (!removedListeners.contains(listener)) {
+                            TransactionData td = extractTransactionData(tx, 0, System.currentTimeMillis()/1000);
+                            listener.onTransaction(td);
+                        }
                     }
                 }
 
-                if (hasMinedTransactions || hasUnMinedTransactions) {
+                if ((hasMinedTransactions || hasUnMinedTransactions) && !removedListeners.contains(listener)) {
                     try {
                         long bal = balance();
                         listener.onBalanceChange(bal);
@@ -231,39 +287,44 @@ public class Wallet implements Serializable {
         blockchainListeners.add(listener);
     }
 
+    /**
+     * Stop calling listener, including from the notification streams it was
+     * registered with by loadWallet.
+     */
+    public void removeListener(WalletEventListener listener) {
+        removedListeners.add(listener);
+        blockchainListeners.remove(listener);
+    }
+
     public String currentAddress() throws Exception {
-        WalletServiceGrpc.WalletServiceBlockingStub stub = WalletServiceGrpc.newBlockingStub(this.channel).withCallCredentials(this.creds);
         Api.CurrentAddressRequest request = Api.CurrentAddressRequest.newBuilder().build();
-        Api.CurrentAddressResponse reply = stub.currentAddress(request);
+        Api.CurrentAddressResponse reply = walletStub.currentAddress(request);
         return reply.getAddress();
     }
 
     public ListenableFuture<Api.ChangePassphraseResponse> changePasswordAsync(String currentPw, String newPw) throws Exception {
         ByteString bvo = ByteString.copyFromUtf8(currentPw);
         ByteString bvn = ByteString.copyFromUtf8(newPw);
-        WalletServiceGrpc.WalletServiceFutureStub stub = WalletServiceGrpc.newFutureStub(this.channel).withCallCredentials(this.creds);
         Api.ChangePassphraseRequest request = Api.ChangePassphraseRequest.newBuilder()
                 .setKey(Api.ChangePassphraseRequest.Key.PRIVATE)
                 .setOldPassphrase(bvo)
                 .setNewPassphrase(bvn)
                 .build();
-        return stub.changePassphrase(request);
+        return walletFutureStub.changePassphrase(request);
     }
 
     public Api.CreateTransactionResponse createTransaction(String addr, long amtSatoshi, int feePerByte) {
-        WalletServiceGrpc.WalletServiceBlockingStub stub = WalletServiceGrpc.newBlockingStub(this.channel).withCallCredentials(this.creds);
         Api.CreateTransactionRequest.Output output = Api.CreateTransactionRequest.Output.newBuilder().setAmount(amtSatoshi).setAddress(addr).build();
         Api.CreateTransactionRequest request = Api.CreateTransactionRequest.newBuilder()
                 .setAccount(0)
                 .setRequiredConfirmations(0)
                 .setSatPerKbFee(feePerByte*1000)
                 .addOutputs(output).build();
-        Api.CreateTransactionResponse reply = stub.createTransaction(request);
+        Api.CreateTransactionResponse reply = walletStub.createTransaction(request);
         return reply;
     }
 
     public Api.CreateTransactionResponse createTransaction(List<Api.CreateTransactionRequest.Output> outputs, int feePerByte) {
-        WalletServiceGrpc.WalletServiceBlockingStub stub = WalletServiceGrpc.newBlockingStub(this.channel).withCallCredentials(this.creds);
         Api.CreateTransactionRequest.Builder builder = Api.CreateTransactionRequest.newBuilder();
 
         builder.setAccount(0)
@@ -275,12 +336,11 @@ public class Wallet implements Serializable {
         }
 
         Api.CreateTransactionRequest request = builder.build();
-        Api.CreateTransactionResponse reply = stub.createTransaction(request);
+        Api.CreateTransactionResponse reply = walletStub.createTransaction(request);
         return reply;
     }
 
     public ListenableFuture<Api.PostPaymentResponse> postPaymentAsync(String refundAddress, long refundAmount, byte[] serializedTransaction, String paymentURL, byte[] merchantData, String toAddress, String memo) {
-        WalletServiceGrpc.WalletServiceFutureStub stub = WalletServiceGrpc.newFutureStub(this.channel).withCallCredentials(this.creds);
         Api.PostPaymentRequest.Output refundOuput = Api.PostPaymentRequest.Output.newBuilder().setAddress(refundAddress).setAmount(refundAmount).build();
 
         ByteString bs = ByteString.copyFrom(serializedTransaction);
@@ -296,11 +356,10 @@ public class Wallet implements Serializable {
         metadata[1] = memo;
         this.metadataCache.put(bs, metadata);
 
-        return stub.postPayment(request);
+        return walletFutureStub.postPayment(request);
     }
 
     public byte[] signTransaction(byte[] serializedTx, List<Long> inputValues, String passphrase) throws Exception {
-        WalletServiceGrpc.WalletServiceBlockingStub stub = WalletServiceGrpc.newBlockingStub(this.channel).withCallCredentials(this.creds);
         Api.SignTransactionRequest.Builder builder = Api.SignTransactionRequest.newBuilder();
         builder.setSerializedTransaction(ByteString.copyFrom(serializedTx));
         for (Long val : inputValues) {
@@ -310,7 +369,7 @@ public class Wallet implements Serializable {
         builder.setPassphrase(pw);
         Api.SignTransactionRequest request = builder.build();
 
-        Api.SignTransactionResponse reply = stub.signTransaction(request);
+        Api.SignTransactionResponse reply = walletStub.signTransaction(request);
         if (reply.getUnsignedInputIndexesList().size() > 0) {
             throw new Exception("Error signing transaction");
         }
@@ -318,7 +377,6 @@ public class Wallet implements Serializable {
     }
 
     public ListenableFuture<Api.SignTransactionResponse> signTransactionAsync(byte[] serializedTx, List<Long> inputValues, String passphrase) {
-        WalletServiceGrpc.WalletServiceFutureStub stub = WalletServiceGrpc.newFutureStub(this.channel).withCallCredentials(this.creds);
         Api.SignTransactionRequest.Builder builder = Api.SignTransactionRequest.newBuilder();
         builder.setSerializedTransaction(ByteString.copyFrom(serializedTx));
         for (Long val : inputValues) {
@@ -328,7 +386,7 @@ public class Wallet implements Serializable {
         builder.setPassphrase(pw);
         Api.SignTransactionRequest request = builder.build();
 
-        return stub.signTransaction(request);
+        return walletFutureStub.signTransaction(request);
     }
 
     public void publishTransaction(byte[] serializedTransaction, String toAddress, String memo) throws Exception {
@@ -337,9 +395,8 @@ public class Wallet implements Serializable {
         metadata[0] = toAddress;
         metadata[1] = memo;
         this.metadataCache.put(bs, metadata);
-        WalletServiceGrpc.WalletServiceBlockingStub stub = WalletServiceGrpc.newBlockingStub(this.channel).withCallCredentials(this.creds);
         Api.PublishTransactionRequest request = Api.PublishTransactionRequest.newBuilder().setSignedTransaction(bs).build();
-        Api.PublishTransactionResponse reply = stub.publishTransaction(request);
+        Api.PublishTransactionResponse reply = walletStub.publishTransaction(request);
     }
 
     public ListenableFuture<Api.PublishTransactionResponse> publishTransactionAsync(byte[] serializedTransaction, String toAddress, String memo) {
@@ -348,75 +405,68 @@ public class Wallet implements Serializable {
         metadata[0] = toAddress;
         metadata[1] = memo;
         this.metadataCache.put(bs, metadata);
-        WalletServiceGrpc.WalletServiceFutureStub stub = WalletServiceGrpc.newFutureStub(this.channel).withCallCredentials(this.creds);
         Api.PublishTransactionRequest request = Api.PublishTransactionRequest.newBuilder().setSignedTransaction(bs).build();
-        return stub.publishTransaction(request);
+        return walletFutureStub.publishTransaction(request);
     }
 
     public Api.SweepAccountResponse sweepAccount(String addr, int feePerByte) throws Exception {
-        WalletServiceGrpc.WalletServiceBlockingStub stub = WalletServiceGrpc.newBlockingStub(this.channel).withCallCredentials(this.creds);
         Api.SweepAccountRequest request = Api.SweepAccountRequest.newBuilder()
                 .setAccount(0).setSatPerKbFee(feePerByte*1000).setSweepToAddress(addr).build();
-        Api.SweepAccountResponse reply = stub.sweepAccount(request);
+        Api.SweepAccountResponse reply = walletStub.sweepAccount(request);
         return reply;
     }
 
     public Api.DownloadPaymentRequestResponse downloadPaymentRequest(String uri) throws Exception {
-        WalletServiceGrpc.WalletServiceBlockingStub stub = WalletServiceGrpc.newBlockingStub(this.channel).withCallCredentials(this.creds);
         Api.DownloadPaymentRequestRequest request = Api.DownloadPaymentRequestRequest.newBuilder().setUri(uri).build();
-        Api.DownloadPaymentRequestResponse reply = stub.downloadPaymentRequest(request);
+        Api.DownloadPaymentRequestResponse reply = walletStub.downloadPaymentRequest(request);
         return reply;
     }
 
     public long balance() throws Exception {
-        WalletServiceGrpc.WalletServiceBlockingStub stub = WalletServiceGrpc.newBlockingStub(this.channel).withCallCredentials(this.creds);
         Api.BalanceRequest request = Api.BalanceRequest.newBuilder().setAccountNumber(0).setRequiredConfirmations(0).build();
-        Api.BalanceResponse reply = stub.balance(request);
+        Api.BalanceResponse reply = walletStub.balance(request);
         return reply.getSpendable();
     }
 
     public void rescan() {
-        WalletServiceGrpc.WalletServiceBlockingStub stub = WalletServiceGrpc.newBlockingStub(this.channel).withCallCredentials(this.creds);
         Api.RescanRequest request = Api.RescanRequest.newBuilder().build();
-        stub.rescan(request);
+        walletStub.rescan(request);
     }
 
     public boolean validateAddress(String addr) throws Exception {
-        WalletServiceGrpc.WalletServiceBlockingStub stub = WalletServiceGrpc.newBlockingStub(this.channel).withCallCredentials(this.creds);
         Api.ValidateAddressRequest request = Api.ValidateAddressRequest.newBuilder().setAddress(addr).build();
-        Api.ValidateAddressResponse reply = stub.validateAddress(request);
+        Api.ValidateAddressResponse reply = walletStub.validateAddress(request);
         return reply.getValid();
     }
 
     public Api.NetworkResponse network() throws Exception {
-        WalletServiceGrpc.WalletServiceBlockingStub stub = WalletServiceGrpc.newBlockingStub(channel).withCallCredentials(creds);
         Api.NetworkRequest request = Api.NetworkRequest.newBuilder().build();
-        Api.NetworkResponse reply = stub.network(request);
+        Api.NetworkResponse reply = walletStub.network(request);
         return reply;
     }
 
     private boolean walletExists() throws Exception {
-        WalletLoaderServiceGrpc.WalletLoaderServiceBlockingStub stub = WalletLoaderServiceGrpc.newBlockingStub(this.channel).withCallCredentials(this.creds);
         Api.WalletExistsRequest request = Api.WalletExistsRequest.newBuilder().build();
-        Api.WalletExistsResponse reply = stub.walletExists(request);
+        Api.WalletExistsResponse reply = loaderStub.walletExists(request);
         return reply.getExists();
     }
 
     private String generateMnemonic() throws Exception {
-        WalletLoaderServiceGrpc.WalletLoaderServiceBlockingStub stub = WalletLoaderServiceGrpc.newBlockingStub(this.channel).withCallCredentials(this.creds);
         Api.GenerateMnemonicSeedRequest request = Api.GenerateMnemonicSeedRequest.newBuilder().setBitSize(128).build();
-        Api.GenerateMnemonicSeedResponse reply = stub.generateMnemonicSeed(request);
+        Api.GenerateMnemonicSeedResponse reply = loaderStub.generateMnemonicSeed(request);
         return reply.getMnemonic();
     }
 
     public void getTransactions(WalletEventListener listener) throws Exception {
-        WalletServiceGrpc.WalletServiceFutureStub stub = WalletServiceGrpc.newFutureStub(this.channel).withCallCredentials(this.creds);
         Api.GetTransactionsRequest request = Api.GetTransactionsRequest.newBuilder().build();
-        ListenableFuture<Api.GetTransactionsResponse> reply = stub.getTransactions(request);
+        ListenableFuture<Api.GetTransactionsResponse> reply = walletFutureStub.getTransactions(request);
 
         Futures.addCallback(reply, new FutureCallback<Api.GetTransactionsResponse>() {
             @Override
             public void onSuccess(Api.GetTransactionsResponse result) {
+                if (removedListeners.contains(listener)) {
+                    return;
+                }
                 int bestHeight = 0;
                 try {
                     bestHeight = network().getBestHeight();
@@ -444,12 +494,11 @@ public class Wallet implements Serializable {
     }
 
     private void listenRescan(WalletEventListener listener) {
-        WalletServiceGrpc.WalletServiceStub stub = WalletServiceGrpc.newStub(channel).withCallCredentials(creds);
         Api.RescanNotificationsRequest request = Api.RescanNotificationsRequest.newBuilder().build();
-        stub.rescanNotifications(request, new StreamObserver<Api.RescanNotificationsResponse>() {
+        walletAsyncStub.rescanNotifications(request, new StreamObserver<Api.RescanNotificationsResponse>() {
             @Override
             public void onNext(Api.RescanNotificationsResponse value) {
-                if (value.getFinished()) {
+                if (value.getFinished() && !removedListeners.contains(listener)) {
                    try {
                        Api.NetworkResponse net = network();
                        listener.onBlock(net.getBestHeight(), net.getBestBlock());
@@ -0,0 +1,129 @@
+package cash.bchd.android_neutrino;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import cash.bchd.android_neutrino.wallet.TransactionData;
+
+import static org.junit.Assert.*;
+
+public class HistoryExporterTest {
+
+    private static final String HEADER = "txid,date,direction,amount_bch,fiat_amount,fiat_currency,height,address,memo\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TransactionStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new TransactionStore(folder.getRoot());
+        List<TransactionData> txs = Arrays.asList(
+                // 2019-03-01T00:00:00Z
+                tx(1, true, "Plain memo", 150000000L, 1551398400L),
+                tx(2, false, "Pizza, \"large\"\nand soda", -2500L, 1551398460L),
+                tx(3, true, "back\\slash\ttab", 100000000L, 1551398520L));
+        for (TransactionData tx : txs) {
+            store.upsert(tx);
+        }
+        store.putAll(txs);
+    }
+
+    @Test
+    public void writesCsvNewestFirstWithQuoting() throws Exception {
+        String csv = export(new HistoryExporter(store, HistoryExporter.Format.CSV), 3);
+        assertEquals(HEADER +
+                txid(3) + ",2019-03-01T00:02:00Z,in,1,12.34,USD,100,qqaddress,back\\slash\ttab\n" +
+                txid(2) + ",2019-03-01T00:01:00Z,out,-0.000025,12.34,USD,100,qqaddress," +
+                "\"Pizza, \"\"large\"\"\nand soda\"\n" +
+                txid(1) + ",2019-03-01T00:00:00Z,in,1.5,12.34,USD,100,qqaddress,Plain memo\n", csv);
+    }
+
+    @Test
+    public void writesJsonWithEscaping() throws Exception {
+        String json = export(new HistoryExporter(store, HistoryExporter.Format.JSON), 3);
+        assertEquals("[\n" +
+                "  {\"txid\":\"" + txid(3) + "\",\"date\":\"2019-03-01T00:02:00Z\",\"direction\":\"in\"," +
+                "\"amountBch\":\"1\",\"fiatAmount\":\"12.34\",\"fiatCurrency\":\"USD\",\"height\":100," +
+                "\"address\":\"qqaddress\",\"memo\":\"back\\\\slash\\u0009tab\"},\n" +
+                "  {\"txid\":\"" + txid(2) + "\",\"date\":\"2019-03-01T00:01:00Z\",\"direction\":\"out\"," +
+                "\"amountBch\":\"-0.000025\",\"fiatAmount\":\"12.34\",\"fiatCurrency\":\"USD\",\"height\":100," +
+                "\"address\":\"qqaddress\",\"memo\":\"Pizza, \\\"large\\\"\\u000aand soda\"},\n" +
+                "  {\"txid\":\"" + txid(1) + "\",\"date\":\"2019-03-01T00:00:00Z\",\"direction\":\"in\"," +
+                "\"amountBch\":\"1.5\",\"fiatAmount\":\"12.34\",\"fiatCurrency\":\"USD\",\"height\":100," +
+                "\"address\":\"qqaddress\",\"memo\":\"Plain memo\"}\n" +
+                "]\n", json);
+    }
+
+    @Test
+    public void writesNullFieldsAsEmptyOrNull() throws Exception {
+        TransactionData tx = new TransactionData(txid(4), true, null, 1, "", "USD", 1551398580L, null, 0);
+        store.upsert(tx);
+        HistoryExporter csv = new HistoryExporter(store, HistoryExporter.Format.CSV);
+        csv.setDateRange(1551398580L, 1551398580L);
+        assertEquals(HEADER + txid(4) + ",2019-03-01T00:03:00Z,in,0.00000001,,USD,0,,\n", export(csv, 1));
+
+        HistoryExporter json = new HistoryExporter(store, HistoryExporter.Format.JSON);
+        json.setDateRange(1551398580L, 1551398580L);
+        assertTrue(export(json, 1).endsWith("\"height\":0,\"address\":null,\"memo\":null}\n]\n"));
+    }
+
+    @Test
+    public void filtersByDateRangeInclusive() throws Exception {
+        HistoryExporter exporter = new HistoryExporter(store, HistoryExporter.Format.CSV);
+        exporter.setDateRange(1551398400L, 1551398460L);
+        String csv = export(exporter, 2);
+        assertTrue(csv.contains(txid(1)));
+        assertTrue(csv.contains(txid(2)));
+        assertFalse(csv.contains(txid(3)));
+    }
+
+    @Test
+    public void filtersByDirection() throws Exception {
+        HistoryExporter exporter = new HistoryExporter(store, HistoryExporter.Format.CSV);
+        exporter.setDirection(HistoryExporter.Direction.OUTGOING);
+        String csv = export(exporter, 1);
+        assertTrue(csv.contains(txid(2)));
+
+        exporter.setDirection(HistoryExporter.Direction.INCOMING);
+        csv = export(exporter, 2);
+        assertFalse(csv.contains(txid(2)));
+    }
+
+    @Test
+    public void writesEmptyHistory() throws Exception {
+        HistoryExporter exporter = new HistoryExporter(store, HistoryExporter.Format.JSON);
+        exporter.setDateRange(0, 1);
+        assertEquals("[]\n", export(exporter, 0));
+    }
+
+    @Test
+    public void formatsExactAmounts() {
+        assertEquals("0", HistoryExporter.formatBCH(0));
+        assertEquals("0.00000001", HistoryExporter.formatBCH(1));
+        assertEquals("21000000", HistoryExporter.formatBCH(2100000000000000L));
+        assertEquals("-1.1", HistoryExporter.formatBCH(-110000000L));
+    }
+
+    private static String export(HistoryExporter exporter, long expected) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(expected, exporter.export(out));
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static TransactionData tx(int n, boolean incoming, String memo, long amount, long timestamp) {
+        return new TransactionData(txid(n), incoming, memo, amount, "12.34", "USD", timestamp, "qqaddress", 100);
+    }
+
+    private static String txid(int n) {
+        return String.format("%064x", n);
+    }
+}
@@ -0,0 +1,177 @@
+package cash.bchd.android_neutrino;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import cash.bchd.android_neutrino.wallet.TransactionData;
+
+import static org.junit.Assert.*;
+
+public class HistoryPersisterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // A store whose next writes fail, recording every batch it is asked to write.
+    // Compactions wait for saveGate to open.
+    private static class FlakyStore extends TransactionStore {
+        final List<List<TransactionData>> batches = new ArrayList<List<TransactionData>>();
+        int failures;
+        CountDownLatch saveGate = new CountDownLatch(0);
+        final CountDownLatch saveStarted = new CountDownLatch(1);
+
+        FlakyStore(File dir) {
+            super(dir);
+        }
+
+        @Override
+        public boolean append(List<TransactionData> txs) throws Exception {
+            synchronized (batches) {
+                batches.add(new ArrayList<TransactionData>(txs));
+                if (failures > 0) {
+                    failures--;
+                    throw new IOException("disk full");
+                }
+            }
+            return super.append(txs);
+        }
+
+        @Override
+        public void save() throws Exception {
+            saveStarted.countDown();
+            saveGate.await();
+            super.save();
+        }
+    }
+
+    @Test
+    public void writesEachTransactionOncePerBatch() throws Exception {
+        FlakyStore store = new FlakyStore(folder.getRoot());
+        HistoryPersister persister = new HistoryPersister(store);
+        persister.markDirty(store.upsert(tx(1, "a")).tx);
+        persister.markDirty(store.upsert(tx(2, "b")).tx);
+        persister.markDirty(Arrays.asList(tx(1, "c"), tx(3, "d")));
+        persister.flush();
+
+        assertEquals(1, store.batches.size());
+        assertEquals(Arrays.asList("c", "b", "d"), memos(store.batches.get(0)));
+        assertEquals(1, persister.getWriteCount());
+        assertEquals(3, persister.getRecordCount());
+        persister.close();
+    }
+
+    @Test
+    public void persistsAcrossReopening() throws Exception {
+        TransactionStore store = new TransactionStore(folder.getRoot());
+        HistoryPersister persister = new HistoryPersister(store);
+        for (int i = 0; i < 20; i++) {
+            persister.markDirty(store.upsert(tx(i, "memo " + i)).tx);
+        }
+        persister.close();
+
+        store = new TransactionStore(folder.getRoot());
+        assertEquals(20, store.size());
+    }
+
+    @Test
+    public void retriesAFailedBatch() throws Exception {
+        FlakyStore store = new FlakyStore(folder.getRoot());
+        store.failures = 1;
+        HistoryPersister persister = new HistoryPersister(store);
+        persister.markDirty(Arrays.asList(tx(1, "a"), tx(2, "b")));
+        persister.flush();
+        assertEquals(0, persister.getWriteCount());
+
+        // A newer copy marked after the failure wins over the one being retried.
+        persister.markDirty(tx(2, "newer"));
+        persister.flush();
+        assertEquals(1, persister.getWriteCount());
+        assertEquals(Arrays.asList("a", "newer"), memos(store.batches.get(1)));
+        persister.close();
+
+        store = new FlakyStore(folder.getRoot());
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void ignoresChangesAfterClose() throws Exception {
+        FlakyStore store = new FlakyStore(folder.getRoot());
+        HistoryPersister persister = new HistoryPersister(store);
+        persister.markDirty(tx(1, "a"));
+        persister.close();
+
+        persister.markDirty(tx(2, "b"));
+        persister.markDirty(Arrays.asList(tx(3, "c")));
+        persister.flush();
+        persister.close();
+        assertEquals(1, store.batches.size());
+    }
+
+    @Test
+    public void leavesCompactionOutOfFlush() throws Exception {
+        FlakyStore store = new FlakyStore(folder.getRoot());
+        store.saveGate = new CountDownLatch(1);
+        HistoryPersister persister = new HistoryPersister(store);
+        List<TransactionData> txs = new ArrayList<TransactionData>();
+        for (int i = 0; i < 1100; i++) {
+            txs.add(tx(i, "memo " + i));
+        }
+        persister.markDirty(txs);
+
+        long start = System.nanoTime();
+        persister.flush();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertTrue("flush took " + elapsed + "ms", elapsed < HistoryPersister.FLUSH_TIMEOUT_MS);
+        assertEquals(1, persister.getWriteCount());
+        // The compaction that is now due runs on the background thread.
+        assertTrue(store.saveStarted.await(5, TimeUnit.SECONDS));
+        store.saveGate.countDown();
+        persister.close();
+    }
+
+    @Test
+    public void flushGivesUpOnASlowWrite() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        HistoryPersister persister = new HistoryPersister(new TransactionStore(folder.getRoot()) {
+            @Override
+            public boolean append(List<TransactionData> txs) throws Exception {
+                gate.await();
+                return super.append(txs);
+            }
+        });
+        persister.markDirty(tx(1, "a"));
+
+        long start = System.nanoTime();
+        persister.flush();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertTrue("flush took " + elapsed + "ms", elapsed >= HistoryPersister.FLUSH_TIMEOUT_MS);
+        assertEquals(0, persister.getWriteCount());
+
+        // The write finishes in the background once it can.
+        gate.countDown();
+        persister.close();
+        assertEquals(1, new TransactionStore(folder.getRoot()).size());
+    }
+
+    private static List<String> memos(List<TransactionData> txs) {
+        List<String> memos = new ArrayList<String>();
+        for (TransactionData tx : txs) {
+            memos.add(tx.getMemo());
+        }
+        return memos;
+    }
+
+    private static TransactionData tx(int n, String memo) {
+        return new TransactionData(String.format("%064x", n), true, memo, 1000, "", "USD", 1551398400L + n,
+                "qqaddress", 1);
+    }
+}
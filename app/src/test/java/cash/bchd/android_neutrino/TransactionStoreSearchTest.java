@@ -0,0 +1,134 @@
+package cash.bchd.android_neutrino;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cash.bchd.android_neutrino.wallet.TransactionData;
+
+import static org.junit.Assert.*;
+
+/**
+ * Searches a store whose rows are split between the snapshot, the in-memory head
+ * and snapshot rows that have since been replaced or moved.
+ */
+public class TransactionStoreSearchTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TransactionStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new TransactionStore(folder.getRoot());
+        List<TransactionData> txs = Arrays.asList(
+                tx(1, "Coffee at Blue Bottle", "qqcafe", 1000, 100),
+                tx(2, "Rent for March", "qqlandlord", 2000, 200),
+                tx(3, "coffee beans", "qqroaster", 3000, 300),
+                tx(4, "", "qqcoffeeshop", 4000, 0));
+        for (TransactionData tx : txs) {
+            store.upsert(tx);
+        }
+        store.putAll(txs);
+        // Move everything into the snapshot, then add a row that only the head holds.
+        store.save();
+        TransactionData headOnly = tx(5, "Blueberry muffin", "qqbakery", 5000, 500);
+        store.upsert(headOnly);
+        store.put(headOnly);
+    }
+
+    @Test
+    public void matchesWordPrefixes() {
+        assertEquals(txids(5, 1), txids(store.search("blue", 10)));
+        assertEquals(txids(5), txids(store.search("blueb", 10)));
+        assertEquals(txids(3, 1), txids(store.search("coff", 10)));
+        assertTrue(store.search("offee", 10).isEmpty());
+    }
+
+    @Test
+    public void matchesEveryWordOfTheQuery() {
+        assertEquals(txids(3), txids(store.search("coffee bea", 10)));
+        assertTrue(store.search("coffee rent", 10).isEmpty());
+    }
+
+    @Test
+    public void foldsCase() {
+        assertEquals(txids(2), txids(store.search("RENT", 10)));
+        assertEquals(txids(2), txids(store.search("mArCh", 10)));
+    }
+
+    @Test
+    public void searchesAddresses() {
+        assertEquals(txids(4), txids(store.search("qqcoffeesh", 10)));
+        assertEquals(txids(4, 1), txids(store.search("qqc", 10)));
+    }
+
+    @Test
+    public void ignoresPunctuationAndEmptyQueries() {
+        assertTrue(store.search("", 10).isEmpty());
+        assertTrue(store.search(" ,.- ", 10).isEmpty());
+        assertEquals(txids(3, 1), txids(store.search("  Coffee!", 10)));
+    }
+
+    @Test
+    public void stopsAtLimitNewestFirst() {
+        assertEquals(txids(5), txids(store.search("b", 1)));
+        assertEquals(txids(5, 3, 1), txids(store.search("b", 10)));
+    }
+
+    @Test
+    public void returnsReplacedRows() {
+        // Same timestamp, so the snapshot row is replaced where it stands.
+        store.upsert(tx(3, "", "", 3000, 350));
+        List<TransactionData> results = store.search("beans", 10);
+        assertEquals(txids(3), txids(results));
+        assertEquals(350, results.get(0).getHeight());
+        assertEquals("coffee beans", results.get(0).getMemo());
+    }
+
+    @Test
+    public void returnsMovedRowsOnce() {
+        // Mining the unconfirmed transaction moves it out of the snapshot.
+        store.upsert(tx(4, "", "", 6000, 600));
+        List<TransactionData> results = store.search("qqcoffee", 10);
+        assertEquals(txids(4), txids(results));
+        assertEquals(6000, results.get(0).getTimestamp());
+        assertEquals(txids(4, 1), txids(store.search("qqc", 10)));
+    }
+
+    @Test
+    public void searchesAfterReopening() throws Exception {
+        store.upsert(tx(1, "", "", 7000, 700));
+        store.put(store.get(0));
+        store = new TransactionStore(folder.getRoot());
+        assertEquals(txids(1, 5), txids(store.search("blue", 10)));
+        assertEquals(7000, store.search("bottle", 10).get(0).getTimestamp());
+    }
+
+    private static TransactionData tx(int n, String memo, String toAddress, long timestamp, int height) {
+        return new TransactionData(String.format("%064x", n), false, memo, 1000, "", "USD", timestamp,
+                toAddress, height);
+    }
+
+    private static List<String> txids(int... ns) {
+        List<String> txids = new ArrayList<String>();
+        for (int n : ns) {
+            txids.add(String.format("%064x", n));
+        }
+        return txids;
+    }
+
+    private static List<String> txids(List<TransactionData> txs) {
+        List<String> txids = new ArrayList<String>();
+        for (TransactionData tx : txs) {
+            txids.add(tx.getTxid());
+        }
+        return txids;
+    }
+}
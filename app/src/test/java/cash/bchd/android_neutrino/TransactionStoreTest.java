@@ -0,0 +1,297 @@
+package cash.bchd.android_neutrino;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import cash.bchd.android_neutrino.wallet.TransactionColumns;
+import cash.bchd.android_neutrino.wallet.TransactionData;
+
+import static org.junit.Assert.*;
+
+public class TransactionStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TransactionStore store;
+
+    @Before
+    public void setUp() {
+        store = new TransactionStore(folder.getRoot());
+    }
+
+    @Test
+    public void ordersNewestFirstThenByTxid() {
+        store.upsert(tx(1, 1000, 10));
+        store.upsert(tx(2, 3000, 30));
+        store.upsert(tx(3, 2000, 20));
+        store.upsert(tx(4, 2000, 20));
+        assertEquals(txids(2, 4, 3, 1), txids());
+    }
+
+    @Test
+    public void reportsInsertPositions() {
+        TransactionStore.Change change = store.upsert(tx(1, 1000, 10));
+        assertTrue(change.isInsert());
+        assertEquals(0, change.newPosition);
+        change = store.upsert(tx(2, 500, 5));
+        assertTrue(change.isInsert());
+        assertEquals(1, change.newPosition);
+        change = store.upsert(tx(3, 2000, 20));
+        assertEquals(0, change.newPosition);
+    }
+
+    @Test
+    public void updatesInPlaceWhenTheTimestampStays() {
+        store.upsert(tx(1, 1000, 0));
+        store.upsert(tx(2, 2000, 20));
+        // An unconfirmed transaction that shows up again unmined keeps its place.
+        TransactionStore.Change change = store.upsert(tx(1, 5000, 0));
+        assertFalse(change.isInsert());
+        assertEquals(1, change.oldPosition);
+        assertEquals(1, change.newPosition);
+        assertEquals(1000, store.get(1).getTimestamp());
+    }
+
+    @Test
+    public void movesATransactionWhenItIsMined() {
+        store.upsert(tx(1, 1000, 0));
+        store.upsert(tx(2, 2000, 20));
+        store.upsert(tx(3, 3000, 30));
+        TransactionStore.Change change = store.upsert(tx(1, 2500, 25));
+        assertEquals(2, change.oldPosition);
+        assertEquals(1, change.newPosition);
+        assertEquals(25, change.tx.getHeight());
+        assertEquals(txids(3, 1, 2), txids());
+    }
+
+    @Test
+    public void keepsTheMemoAndFillsInMissingAmounts() {
+        store.upsert(new TransactionData(txid(1), true, "Rent", 0, "", "USD", 1000, "qqaddress", 0));
+        TransactionData tx = store.upsert(
+                new TransactionData(txid(1), true, "", 5000, "$1.50", "EUR", 1000, "", 10)).tx;
+        assertEquals("Rent", tx.getMemo());
+        assertEquals(5000, tx.getAmount());
+        assertEquals("$1.50", tx.getFiatAmount());
+        assertEquals("USD", tx.getFiatCurrency());
+        assertEquals("qqaddress", tx.getToAddress());
+        assertEquals(10, tx.getHeight());
+    }
+
+    @Test
+    public void reopensFromTheJournal() throws Exception {
+        persist(tx(1, 1000, 10), tx(2, 2000, 20));
+        persist(store.upsert(tx(1, 3000, 30)).tx);
+
+        store = new TransactionStore(folder.getRoot());
+        assertEquals(txids(1, 2), txids());
+        assertEquals(30, store.get(0).getHeight());
+    }
+
+    @Test
+    public void keepsPositionsAcrossASave() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            persist(tx(i, 1000 + i * 10, i + 1));
+        }
+        List<String> before = txids();
+        store.save();
+        assertEquals(before, txids());
+
+        // Reorder rows that are now in the snapshot, then add one in between.
+        persist(store.upsert(tx(3, 5000, 100)).tx);
+        persist(store.upsert(tx(7, 1001, 100)).tx);
+        persist(store.upsert(tx(99, 1205, 99)).tx);
+        List<String> after = txids();
+        assertEquals(txid(3), after.get(0));
+        assertEquals(txid(99), after.get(30));
+        assertEquals(51, after.size());
+
+        store = new TransactionStore(folder.getRoot());
+        assertEquals(after, txids());
+        store.save();
+        store = new TransactionStore(folder.getRoot());
+        assertEquals(after, txids());
+    }
+
+    @Test
+    public void pagesThroughTheSnapshotAndHead() throws Exception {
+        for (int i = 0; i < 30; i++) {
+            persist(tx(i, 1000 + i * 10, i + 1));
+        }
+        store.save();
+        for (int i = 30; i < 40; i++) {
+            persist(tx(i, 1005 + (i - 30) * 30, i + 1));
+        }
+        List<String> paged = new ArrayList<String>();
+        TransactionStore.Page page = store.getPage(0, 7);
+        paged.addAll(txids(page.rows));
+        while (page.next != null) {
+            page = store.getPage(page.next, 7);
+            paged.addAll(txids(page.rows));
+        }
+        assertEquals(txids(), paged);
+        assertEquals(txids().subList(12, 19), txids(store.getPage(12, 7).rows));
+    }
+
+    @Test
+    public void findsPositionsByTimestamp() {
+        store.upsert(tx(1, 1000, 10));
+        store.upsert(tx(2, 2000, 20));
+        store.upsert(tx(3, 3000, 30));
+        assertEquals(0, store.positionOf(3000));
+        assertEquals(1, store.positionOf(2999));
+        assertEquals(2, store.positionOf(1000));
+        assertEquals(3, store.positionOf(999));
+    }
+
+    @Test
+    public void keepsASnapshotOfAnotherVersion() throws Exception {
+        persist(tx(1, 1000, 10));
+        store.save();
+        persist(tx(2, 2000, 20));
+        File snapshot = new File(folder.getRoot(), "transactionHistory.dat");
+        RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+        raf.seek(4);
+        raf.writeInt(99);
+        raf.close();
+
+        store = new TransactionStore(folder.getRoot());
+        assertEquals(txids(2), txids());
+        assertTrue(new File(snapshot.getPath() + ".v99").exists());
+        assertFalse(new File(snapshot.getPath() + ".corrupt").exists());
+    }
+
+    @Test
+    public void setsAsideADamagedSnapshot() throws Exception {
+        persist(tx(1, 1000, 10));
+        store.save();
+        persist(tx(2, 2000, 20));
+        File snapshot = new File(folder.getRoot(), "transactionHistory.dat");
+        RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+        raf.setLength(70);
+        raf.close();
+
+        store = new TransactionStore(folder.getRoot());
+        assertEquals(txids(2), txids());
+        assertTrue(new File(snapshot.getPath() + ".corrupt").exists());
+    }
+
+    @Test
+    public void givesEveryPositionTheIdOfItsTransaction() throws Exception {
+        for (int i = 0; i < 30; i++) {
+            persist(hashedTx(i, 1000 + i * 10));
+        }
+        store.save();
+        persist(hashedTx(100, 1055));
+        persist(hashedTx(4, 5000));
+        TransactionColumns columns = new TransactionColumns();
+        columns.addAll(store.getPage(0, store.size()).rows);
+        Set<Long> ids = new HashSet<Long>();
+        for (int position = 0; position < store.size(); position++) {
+            assertEquals(columns.getId(position), store.getId(position));
+            ids.add(store.getId(position));
+        }
+        assertEquals(store.size(), ids.size());
+    }
+
+    @Test
+    public void matchesASortedListUnderRandomUpdates() throws Exception {
+        Random random = new Random(7);
+        TreeMap<String, TransactionData> expected = new TreeMap<String, TransactionData>();
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int round = 0; round < 6; round++) {
+            List<TransactionData> batch = new ArrayList<TransactionData>();
+            for (int i = 0; i < 300; i++) {
+                TransactionData tx;
+                if (!ids.isEmpty() && random.nextInt(3) == 0) {
+                    // Mine or re-mine a known transaction, usually moving it.
+                    int n = ids.get(random.nextInt(ids.size()));
+                    tx = tx(n, 1000 + random.nextInt(40), random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(500));
+                } else {
+                    int n = 1000 * round + i;
+                    ids.add(n);
+                    tx = tx(n, 1000 + random.nextInt(40), random.nextInt(500));
+                }
+                TransactionStore.Change change = store.upsert(tx);
+                assertSame(change.tx, store.get(change.newPosition));
+                expected.put(change.tx.getTxid(), change.tx);
+                batch.add(change.tx);
+            }
+            store.putAll(batch);
+            assertMatches(expected);
+            store = new TransactionStore(folder.getRoot());
+            assertMatches(expected);
+            if (round % 2 == 1) {
+                store.save();
+                assertMatches(expected);
+            }
+        }
+    }
+
+    private void assertMatches(TreeMap<String, TransactionData> expected) {
+        List<TransactionData> sorted = new ArrayList<TransactionData>(expected.values());
+        Collections.sort(sorted, Collections.reverseOrder());
+        assertEquals(txids(sorted), txids());
+        for (int i = 0; i < sorted.size(); i++) {
+            assertEquals(sorted.get(i).getHeight(), store.get(i).getHeight());
+        }
+    }
+
+    private void persist(TransactionData... txs) throws Exception {
+        List<TransactionData> batch = new ArrayList<TransactionData>();
+        for (TransactionData tx : txs) {
+            batch.add(store.upsert(tx).tx);
+        }
+        store.putAll(batch);
+    }
+
+    private List<String> txids() {
+        List<String> txids = new ArrayList<String>();
+        for (int i = 0; i < store.size(); i++) {
+            txids.add(store.get(i).getTxid());
+        }
+        return txids;
+    }
+
+    private static List<String> txids(List<TransactionData> txs) {
+        List<String> txids = new ArrayList<String>();
+        for (TransactionData tx : txs) {
+            txids.add(tx.getTxid());
+        }
+        return txids;
+    }
+
+    private static List<String> txids(int... ns) {
+        List<String> txids = new ArrayList<String>();
+        for (int n : ns) {
+            txids.add(txid(n));
+        }
+        return txids;
+    }
+
+    private static String txid(int n) {
+        return String.format("%064x", n);
+    }
+
+    // A transaction whose txid starts with distinct bytes, as real ones do.
+    private static TransactionData hashedTx(int n, long timestamp) {
+        return new TransactionData(String.format("%08x%056x", n * 0x9E3779B1, n), true, "", 1000, "", "USD",
+                timestamp, "", 10);
+    }
+
+    private static TransactionData tx(int n, long timestamp, int height) {
+        return new TransactionData(txid(n), true, "memo " + n, 1000, "$1.00", "USD", timestamp, "qqaddress", height);
+    }
+}
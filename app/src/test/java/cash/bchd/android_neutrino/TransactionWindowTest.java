@@ -0,0 +1,220 @@
+package cash.bchd.android_neutrino;
+
+import android.support.v7.util.ListUpdateCallback;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cash.bchd.android_neutrino.wallet.TransactionData;
+
+import static org.junit.Assert.*;
+
+public class TransactionWindowTest {
+
+    private static final int PAGE_SIZE = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TransactionStore store;
+    private TransactionWindow window;
+    private final List<String> events = new ArrayList<String>();
+
+    @Before
+    public void setUp() {
+        store = new TransactionStore(folder.getRoot());
+        for (int i = 0; i < 100; i++) {
+            store.upsert(tx(i, 1000 + i * 10));
+        }
+        window = new TransactionWindow(new ListUpdateCallback() {
+            @Override
+            public void onInserted(int position, int count) {
+                events.add("inserted " + position + " " + count);
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+                events.add("removed " + position + " " + count);
+            }
+
+            @Override
+            public void onMoved(int fromPosition, int toPosition) {
+                events.add("moved " + fromPosition + " " + toPosition);
+            }
+
+            @Override
+            public void onChanged(int position, int count, Object payload) {
+                events.add("changed " + position + " " + count +
+                        (payload == TransactionWindow.PAYLOAD_LOADED ? " loaded" : ""));
+            }
+        }, PAGE_SIZE, 1, 2);
+    }
+
+    @Test
+    public void growsAsPagesAreAdded() {
+        load(0);
+        load(10);
+        assertEquals(Arrays.asList("inserted 0 10", "inserted 10 10"), events);
+        assertEquals(20, window.size());
+        assertFalse(window.isEndReached());
+        assertWindowMatchesStore();
+    }
+
+    @Test
+    public void reachesTheEnd() {
+        for (int position = 0; position < 100; position += PAGE_SIZE) {
+            load(position);
+        }
+        assertEquals(100, window.size());
+        assertTrue(window.isEndReached());
+        assertEquals(-1, window.nextPage(90, 99, PAGE_SIZE));
+    }
+
+    @Test
+    public void asksForPagesAroundTheVisibleRows() {
+        assertEquals(0, window.nextPage(0, 5, PAGE_SIZE));
+        load(0);
+        // The visible rows are held, so prefetch the next page.
+        assertEquals(10, window.nextPage(0, 5, PAGE_SIZE));
+        load(10);
+        assertEquals(-1, window.nextPage(0, 5, PAGE_SIZE));
+        assertEquals(20, window.nextPage(5, 12, PAGE_SIZE));
+    }
+
+    @Test
+    public void evictsRowsFarFromTheScreen() {
+        for (int position = 0; position < 60; position += PAGE_SIZE) {
+            load(position);
+        }
+        window.evict(40, 45, 5);
+        assertEquals(60, window.size());
+        assertFalse(window.isLoaded(34));
+        assertTrue(window.isLoaded(35));
+        assertTrue(window.isLoaded(50));
+        assertFalse(window.isLoaded(51));
+        assertWindowMatchesStore();
+
+        // Scrolling back up loads the page above, cut short where the window starts.
+        assertEquals(25, window.nextPage(30, 36, 5));
+        assertEquals(10, window.pageLimit(25));
+        assertEquals(5, window.pageLimit(30));
+        events.clear();
+        window.addPage(30, store.getPage(30, 5), models(store.getPage(30, 5)));
+        assertEquals(Arrays.asList("changed 30 5 loaded"), events);
+        assertTrue(window.isLoaded(30));
+        assertWindowMatchesStore();
+    }
+
+    @Test
+    public void dropsEverythingWhenTheScreenJumps() {
+        load(0);
+        load(10);
+        window.evict(80, 85, 5);
+        assertFalse(window.isLoaded(0));
+        assertFalse(window.isLoaded(19));
+        assertEquals(20, window.size());
+    }
+
+    @Test
+    public void mirrorsInsertsAboveTheWindow() {
+        for (int position = 0; position < 30; position += PAGE_SIZE) {
+            load(position);
+        }
+        window.evict(20, 25, 3);
+        events.clear();
+        apply(tx(200, 5000));
+        assertEquals(Arrays.asList("inserted 0 1"), events);
+        assertEquals(31, window.size());
+        assertFalse(window.isLoaded(17));
+        assertTrue(window.isLoaded(18));
+        assertWindowMatchesStore();
+    }
+
+    @Test
+    public void mirrorsInsertsInsideTheWindow() {
+        load(0);
+        load(10);
+        events.clear();
+        apply(tx(200, 1000 + 95 * 10 + 5));
+        assertEquals(Arrays.asList("inserted 4 1"), events);
+        assertEquals(21, window.size());
+        assertWindowMatchesStore();
+    }
+
+    @Test
+    public void leavesInsertsPastTheLoadedEndToTheirPage() {
+        load(0);
+        events.clear();
+        apply(tx(200, 500));
+        assertTrue(events.isEmpty());
+        assertEquals(10, window.size());
+        assertWindowMatchesStore();
+    }
+
+    @Test
+    public void mirrorsMovesAndUpdates() {
+        load(0);
+        load(10);
+        events.clear();
+        // Row 15 moves to the top.
+        apply(tx(84, 9000));
+        assertEquals(Arrays.asList("moved 15 0", "changed 0 1"), events);
+        assertWindowMatchesStore();
+
+        events.clear();
+        TransactionData updated = new TransactionData(store.get(3).getTxid(), true, "", 0, "", "USD",
+                store.get(3).getTimestamp(), "", 77);
+        apply(updated);
+        assertEquals(Arrays.asList("changed 3 1"), events);
+        assertEquals(77, window.get(3).getHeight());
+        assertWindowMatchesStore();
+    }
+
+    @Test
+    public void mirrorsMovesOutOfTheLoadedRange() {
+        load(0);
+        events.clear();
+        // Row 2 moves far below the rows exposed so far.
+        apply(tx(97, 100));
+        assertEquals(Arrays.asList("removed 2 1"), events);
+        assertEquals(9, window.size());
+        assertWindowMatchesStore();
+    }
+
+    private void load(int position) {
+        TransactionStore.Page page = store.getPage(position, window.pageLimit(position));
+        window.addPage(position, page, models(page));
+    }
+
+    private List<TransactionRowModel> models(TransactionStore.Page page) {
+        List<TransactionRowModel> models = new ArrayList<TransactionRowModel>();
+        for (TransactionData tx : page.rows) {
+            models.add(window.newModel(tx));
+        }
+        return models;
+    }
+
+    private void apply(TransactionData tx) {
+        window.apply(store.upsert(tx), true);
+    }
+
+    private void assertWindowMatchesStore() {
+        for (int position = 0; position < window.size(); position++) {
+            if (window.isLoaded(position)) {
+                assertEquals(store.get(position).getTxid(), window.get(position).getTxid());
+                assertEquals(store.get(position).getTxid(), window.getRows().get(window.indexOf(position)).getTxid());
+            }
+        }
+    }
+
+    private static TransactionData tx(int n, long timestamp) {
+        return new TransactionData(String.format("%064x", n), true, "memo " + n, 1000, "$1.00", "USD", timestamp,
+                "qqaddress", 10);
+    }
+}
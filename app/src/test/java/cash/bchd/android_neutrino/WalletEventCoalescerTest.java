@@ -0,0 +1,135 @@
+package cash.bchd.android_neutrino;
+
+import android.view.Choreographer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cash.bchd.android_neutrino.wallet.TransactionData;
+
+import static org.junit.Assert.*;
+
+public class WalletEventCoalescerTest {
+
+    // Holds the posted frame callbacks until the test runs a frame.
+    private static class ManualScheduler implements WalletEventCoalescer.FrameScheduler {
+        final List<Choreographer.FrameCallback> posted = new ArrayList<Choreographer.FrameCallback>();
+
+        @Override
+        public void postFrameCallback(Choreographer.FrameCallback callback) {
+            posted.add(callback);
+        }
+
+        @Override
+        public void removeFrameCallback(Choreographer.FrameCallback callback) {
+            posted.remove(callback);
+        }
+
+        void runFrame() {
+            List<Choreographer.FrameCallback> callbacks = new ArrayList<Choreographer.FrameCallback>(posted);
+            posted.clear();
+            for (Choreographer.FrameCallback callback : callbacks) {
+                callback.doFrame(System.nanoTime());
+            }
+        }
+    }
+
+    private final List<String> received = new ArrayList<String>();
+    private final List<Integer> batchSizes = new ArrayList<Integer>();
+    private ManualScheduler scheduler;
+    private WalletEventCoalescer coalescer;
+
+    @Before
+    public void setUp() {
+        scheduler = new ManualScheduler();
+        coalescer = new WalletEventCoalescer(new WalletEventCoalescer.Target() {
+            @Override
+            public void onTransactions(List<TransactionData> txs) {
+                batchSizes.add(txs.size());
+                for (TransactionData tx : txs) {
+                    received.add("tx " + tx.getMemo());
+                }
+            }
+
+            @Override
+            public void onBlock(int blockHeight, String blockHash) {
+                received.add("block " + blockHeight + " " + blockHash);
+            }
+
+            @Override
+            public void onBalanceChange(long satoshis) {
+                received.add("balance " + satoshis);
+            }
+        }, new UiMetrics(), scheduler);
+    }
+
+    @Test
+    public void deliversABurstInOneFrame() {
+        coalescer.postTransaction(tx("a"));
+        coalescer.postBlock(10, "h10");
+        coalescer.postBalance(100);
+        coalescer.postTransactions(Arrays.asList(tx("b"), tx("c")));
+        coalescer.postBlock(12, "h12");
+        coalescer.postBlock(11, "h11");
+        coalescer.postBalance(250);
+        assertEquals(1, scheduler.posted.size());
+        assertTrue(received.isEmpty());
+
+        scheduler.runFrame();
+        assertEquals(Arrays.asList("tx a", "tx b", "tx c", "block 12 h12", "balance 250"), received);
+        assertTrue(scheduler.posted.isEmpty());
+    }
+
+    @Test
+    public void schedulesAgainForLaterEvents() {
+        coalescer.postBalance(1);
+        scheduler.runFrame();
+        coalescer.postBalance(2);
+        assertEquals(1, scheduler.posted.size());
+        scheduler.runFrame();
+        assertEquals(Arrays.asList("balance 1", "balance 2"), received);
+    }
+
+    @Test
+    public void spreadsALargeSyncOverFrames() {
+        List<TransactionData> txs = new ArrayList<TransactionData>();
+        for (int i = 0; i < 450; i++) {
+            txs.add(tx(Integer.toString(i)));
+        }
+        coalescer.postTransactions(txs);
+        coalescer.postBlock(5, "h5");
+        scheduler.runFrame();
+        assertEquals(Arrays.asList(200), batchSizes);
+        // The block goes out with the first frame; later frames only carry the rest.
+        assertEquals("block 5 h5", received.get(200));
+        scheduler.runFrame();
+        scheduler.runFrame();
+        assertEquals(Arrays.asList(200, 200, 50), batchSizes);
+        assertTrue(scheduler.posted.isEmpty());
+        assertEquals("tx 449", received.get(received.size() - 1));
+    }
+
+    @Test
+    public void dropsEverythingOnceClosed() {
+        coalescer.postTransaction(tx("a"));
+        coalescer.postBalance(1);
+        coalescer.close();
+        assertTrue(scheduler.posted.isEmpty());
+
+        coalescer.postTransaction(tx("b"));
+        coalescer.postBlock(1, "h1");
+        assertTrue(scheduler.posted.isEmpty());
+        // A frame that was already on its way does nothing.
+        coalescer.doFrame(System.nanoTime());
+        assertTrue(received.isEmpty());
+    }
+
+    private static TransactionData tx(String memo) {
+        return new TransactionData(String.format("%064x", memo.hashCode()), true, memo, 1000, "", "USD",
+                1551398400L, "qqaddress", 1);
+    }
+}
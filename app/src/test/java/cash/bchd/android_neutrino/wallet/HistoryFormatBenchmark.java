@@ -0,0 +1,135 @@
+package cash.bchd.android_neutrino.wallet;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the Java serialized history used by earlier versions with the block
+ * encoded HistoryFile snapshot, with and without Deflate. Prints the size, write
+ * time, time to open and show the first page, and time to read every row.
+ *
+ * It takes a while, so it is skipped unless HISTORY_BENCHMARK is set in the
+ * environment, for example HISTORY_BENCHMARK=1 ./gradlew testDebugUnitTest.
+ */
+public class HistoryFormatBenchmark {
+
+    private static final int FIRST_PAGE = 50;
+
+    @Test
+    public void compareFormats() throws Exception {
+        Assume.assumeTrue(System.getenv("HISTORY_BENCHMARK") != null);
+        for (int n : new int[]{10000, 100000}) {
+            ArrayList<TransactionData> txs = generate(n);
+            // Warm up once so the first size is not penalised by the JIT.
+            if (n == 10000) {
+                legacy(txs, false);
+                snapshot(txs, true, false);
+            }
+            legacy(txs, true);
+            snapshot(txs, false, true);
+            snapshot(txs, true, true);
+        }
+    }
+
+    private static void legacy(ArrayList<TransactionData> txs, boolean print) throws Exception {
+        long start = System.nanoTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(txs);
+        out.close();
+        long write = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        @SuppressWarnings("unchecked")
+        ArrayList<TransactionData> loaded = (ArrayList<TransactionData>) in.readObject();
+        in.close();
+        long load = System.nanoTime() - start;
+        assertEquals(txs.size(), loaded.size());
+        if (print) {
+            // The legacy format has to be read in full before anything is shown.
+            report("serialized", txs.size(), bytes.size(), write, load, load);
+        }
+    }
+
+    private static void snapshot(ArrayList<TransactionData> txs, boolean deflate, boolean print) throws Exception {
+        File file = File.createTempFile("history", ".dat");
+        try {
+            long start = System.nanoTime();
+            HistoryFile.write(file, txs, deflate);
+            long write = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            HistoryFile history = HistoryFile.open(file);
+            for (int i = 0; i < FIRST_PAGE; i++) {
+                history.read(i);
+            }
+            long firstPage = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            history = HistoryFile.open(file);
+            for (int i = 0; i < history.size(); i++) {
+                TransactionData tx = history.read(i);
+                if (i % 997 == 0) {
+                    assertEquals(txs.get(i).getTxid(), tx.getTxid());
+                    assertEquals(txs.get(i).getTimestamp(), tx.getTimestamp());
+                    assertEquals(txs.get(i).getAmount(), tx.getAmount());
+                    assertEquals(txs.get(i).getMemo(), tx.getMemo());
+                }
+            }
+            long load = System.nanoTime() - start;
+            if (print) {
+                report(deflate ? "blocks+deflate" : "blocks", txs.size(), file.length(), write, firstPage, load);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void report(String format, int n, long bytes, long write, long firstPage, long load) {
+        System.out.println(String.format("%-15s %7d rows %9d bytes (%5.1f/row)  write %6.1fms  first page %6.2fms  read all %6.1fms",
+                format, n, bytes, (double) bytes / n, write / 1e6, firstPage / 1e6, load / 1e6));
+    }
+
+    // A point of sale history: newest first, a few seconds to minutes apart, a
+    // handful of regular counterparties and memos, one fiat currency.
+    private static ArrayList<TransactionData> generate(int n) {
+        Random random = new Random(42);
+        String[] memos = {"", "", "", "Coffee", "Lunch special", "Supplier invoice", "Rent"};
+        String[] addresses = new String[20];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = "bitcoincash:qq" + String.format("%040x", random.nextLong() & Long.MAX_VALUE);
+        }
+        ArrayList<TransactionData> txs = new ArrayList<TransactionData>(n);
+        long timestamp = 1560000000L;
+        int height = 590000;
+        for (int i = 0; i < n; i++) {
+            byte[] txid = new byte[TransactionCodec.TXID_LENGTH];
+            random.nextBytes(txid);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : txid) {
+                hex.append(String.format("%02x", b & 0xFF));
+            }
+            boolean incoming = random.nextInt(4) != 0;
+            long amount = (incoming ? 1 : -1) * (10000 + random.nextInt(5000000));
+            String fiat = String.format("$%d.%02d", Math.abs(amount) / 30000, random.nextInt(100));
+            timestamp -= 5 + random.nextInt(600);
+            if (random.nextInt(10) == 0) {
+                height--;
+            }
+            txs.add(new TransactionData(hex.toString(), incoming, memos[random.nextInt(memos.length)], amount, fiat,
+                    "USD", timestamp, incoming ? "" : addresses[random.nextInt(addresses.length)], height));
+        }
+        return txs;
+    }
+}
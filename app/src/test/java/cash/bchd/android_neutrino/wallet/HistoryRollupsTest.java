@@ -0,0 +1,177 @@
+package cash.bchd.android_neutrino.wallet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class HistoryRollupsTest {
+
+    // 2019-01-31T00:00:00Z, 2019-02-01T00:00:00Z and 2020-02-29T00:00:00Z.
+    private static final long JAN_31 = 1548892800L;
+    private static final long FEB_1 = 1548979200L;
+    private static final long LEAP_DAY = 1582934400L;
+    private static final long DAY = HistoryRollups.SECONDS_PER_DAY;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void bucketsByUtcDay() {
+        assertEquals(FEB_1, HistoryRollups.dayOf(FEB_1));
+        assertEquals(JAN_31, HistoryRollups.dayOf(FEB_1 - 1));
+        assertEquals(FEB_1, HistoryRollups.dayOf(FEB_1 + DAY - 1));
+        // Before 1970 the day still starts at or before the timestamp.
+        assertEquals(-DAY, HistoryRollups.dayOf(-1));
+    }
+
+    @Test
+    public void bucketsByUtcMonth() {
+        assertEquals(1546300800L, HistoryRollups.monthOf(FEB_1 - 1));
+        assertEquals(FEB_1, HistoryRollups.monthOf(FEB_1));
+        // 2020-02-01T00:00:00Z, for the last second of the leap day.
+        assertEquals(1580515200L, HistoryRollups.monthOf(LEAP_DAY + DAY - 1));
+        // 2020-03-01T00:00:00Z
+        assertEquals(LEAP_DAY + DAY, HistoryRollups.monthOf(LEAP_DAY + DAY));
+    }
+
+    @Test
+    public void ignoresTheDefaultTimeZone() {
+        TimeZone saved = TimeZone.getDefault();
+        try {
+            for (String id : new String[]{"Pacific/Kiritimati", "America/Los_Angeles", "Asia/Kolkata"}) {
+                TimeZone.setDefault(TimeZone.getTimeZone(id));
+                assertEquals(FEB_1, HistoryRollups.monthOf(FEB_1 + 3600));
+                assertEquals(1546300800L, HistoryRollups.monthOf(FEB_1 - 3600));
+                HistoryRollups rollups = new HistoryRollups();
+                rollups.add(tx(1, true, 100, FEB_1 - 1));
+                rollups.add(tx(2, true, 200, FEB_1));
+                assertEquals(2, rollups.getMonthly(0, Long.MAX_VALUE).size());
+            }
+        } finally {
+            TimeZone.setDefault(saved);
+        }
+    }
+
+    @Test
+    public void totalsEachDay() {
+        HistoryRollups rollups = new HistoryRollups();
+        rollups.add(tx(1, true, 100, JAN_31));
+        rollups.add(tx(2, true, 50, FEB_1 - 1));
+        rollups.add(tx(3, false, -30, JAN_31 + 60));
+        rollups.add(tx(4, false, -7, FEB_1));
+
+        List<HistoryRollups.Rollup> daily = rollups.getDaily(0, Long.MAX_VALUE);
+        assertEquals(2, daily.size());
+        assertDay(daily.get(0), JAN_31, 3, 2, 150, 30);
+        assertDay(daily.get(1), FEB_1, 1, 0, 0, 7);
+        assertEquals(120, daily.get(0).getNet());
+    }
+
+    @Test
+    public void includesEveryDayThatOverlapsTheRange() {
+        HistoryRollups rollups = new HistoryRollups();
+        rollups.add(tx(1, true, 100, JAN_31));
+        rollups.add(tx(2, true, 200, FEB_1));
+        rollups.add(tx(3, true, 300, FEB_1 + DAY));
+
+        // Part way through January 31 to the very start of February 1.
+        List<HistoryRollups.Rollup> daily = rollups.getDaily(JAN_31 + 3600, FEB_1);
+        assertEquals(2, daily.size());
+        assertEquals(JAN_31, daily.get(0).start);
+        assertEquals(FEB_1, daily.get(1).start);
+
+        assertEquals(1, rollups.getDaily(FEB_1 - 1, FEB_1 - 1).size());
+        assertTrue(rollups.getDaily(JAN_31 + DAY * 5, JAN_31 + DAY * 6).isEmpty());
+    }
+
+    @Test
+    public void groupsDaysByMonth() {
+        HistoryRollups rollups = new HistoryRollups();
+        rollups.add(tx(1, true, 100, JAN_31));
+        rollups.add(tx(2, true, 200, FEB_1));
+        rollups.add(tx(3, false, -50, FEB_1 + 10 * DAY));
+        rollups.add(tx(4, true, 1, LEAP_DAY));
+
+        List<HistoryRollups.Rollup> monthly = rollups.getMonthly(0, Long.MAX_VALUE);
+        assertEquals(3, monthly.size());
+        assertDay(monthly.get(0), 1546300800L, 1, 1, 100, 0);
+        assertDay(monthly.get(1), FEB_1, 2, 1, 200, 50);
+        assertDay(monthly.get(2), 1580515200L, 1, 1, 1, 0);
+
+        // A range starting mid month only counts the days it covers.
+        monthly = rollups.getMonthly(FEB_1 + DAY, FEB_1 + 20 * DAY);
+        assertEquals(1, monthly.size());
+        assertDay(monthly.get(0), FEB_1, 1, 0, 0, 50);
+    }
+
+    @Test
+    public void removeUndoesAdd() {
+        HistoryRollups rollups = new HistoryRollups();
+        TransactionData unconfirmed = tx(1, true, 100, JAN_31);
+        rollups.add(unconfirmed);
+        rollups.add(tx(2, true, 10, FEB_1));
+
+        // Mining moves the transaction to the block's day.
+        rollups.remove(unconfirmed);
+        rollups.add(tx(1, true, 100, FEB_1 + 60));
+
+        List<HistoryRollups.Rollup> daily = rollups.getDaily(0, Long.MAX_VALUE);
+        assertEquals(1, daily.size());
+        assertDay(daily.get(0), FEB_1, 2, 2, 110, 0);
+    }
+
+    @Test
+    public void returnsCopies() {
+        HistoryRollups rollups = new HistoryRollups();
+        rollups.add(tx(1, true, 100, JAN_31));
+        rollups.getDaily(0, Long.MAX_VALUE).get(0).received = 0;
+        assertEquals(100, rollups.getDaily(0, Long.MAX_VALUE).get(0).received);
+    }
+
+    @Test
+    public void survivesASnapshot() throws Exception {
+        List<TransactionData> txs = new ArrayList<TransactionData>(Arrays.asList(
+                tx(4, false, -25, LEAP_DAY + 5),
+                tx(3, true, 300, FEB_1 + 1),
+                tx(2, true, 200, FEB_1),
+                tx(1, true, 100, JAN_31)));
+        HistoryRollups expected = new HistoryRollups();
+        for (TransactionData tx : txs) {
+            expected.add(tx);
+        }
+        File file = new File(folder.getRoot(), "history.dat");
+        HistoryFile.write(file, txs);
+        HistoryRollups read = new HistoryRollups();
+        HistoryFile.open(file).readRollups(read);
+
+        List<HistoryRollups.Rollup> want = expected.getDaily(0, Long.MAX_VALUE);
+        List<HistoryRollups.Rollup> got = read.getDaily(0, Long.MAX_VALUE);
+        assertEquals(want.size(), got.size());
+        for (int i = 0; i < want.size(); i++) {
+            HistoryRollups.Rollup w = want.get(i);
+            assertDay(got.get(i), w.start, w.count, w.incomingCount, w.received, w.sent);
+        }
+    }
+
+    private static void assertDay(HistoryRollups.Rollup r, long start, int count, int incomingCount,
+                                  long received, long sent) {
+        assertEquals(start, r.start);
+        assertEquals(count, r.count);
+        assertEquals(incomingCount, r.incomingCount);
+        assertEquals(received, r.received);
+        assertEquals(sent, r.sent);
+    }
+
+    private static TransactionData tx(int n, boolean incoming, long amount, long timestamp) {
+        return new TransactionData(String.format("%064x", n), incoming, "", amount, "", "USD", timestamp,
+                "qqaddress", 1);
+    }
+}
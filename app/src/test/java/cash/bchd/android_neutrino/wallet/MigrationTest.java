@@ -0,0 +1,222 @@
+package cash.bchd.android_neutrino.wallet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MigrationTest {
+
+    private static final String LEGACY = "transactionData.dat";
+    private static final String SNAPSHOT = "transactionHistory.dat";
+    private static final String JOURNAL = "transactionJournal.dat";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void importsTheLegacyHistoryIntoASnapshot() throws Exception {
+        writeLegacy(legacyHistory(2000));
+
+        Migration.importLegacyHistory(folder.getRoot(), null);
+
+        assertFalse(file(LEGACY).exists());
+        HistoryFile snapshot = HistoryFile.open(file(SNAPSHOT));
+        assertEquals(2000, snapshot.size());
+        // Newest first, whatever order the legacy list was in.
+        assertEquals(tx(1999, "legacy").getTxid(), snapshot.read(0).getTxid());
+        assertEquals(tx(0, "legacy").getTxid(), snapshot.read(1999).getTxid());
+        assertEquals(0, journalRecords());
+    }
+
+    @Test
+    public void keepsWhatTheStoreAlreadyHolds() throws Exception {
+        writeLegacy(legacyHistory(10));
+        HistoryFile.write(file(SNAPSHOT), Collections.singletonList(tx(3, "snapshot")));
+        TransactionJournal journal = new TransactionJournal(file(JOURNAL));
+        journal.replay(tx -> { });
+        journal.append(Arrays.asList(tx(5, "journal"), tx(20, "new")));
+        journal.close();
+
+        Migration.importLegacyHistory(folder.getRoot(), null);
+
+        // Journaled transactions stay in the journal, which replays over the snapshot.
+        HistoryFile snapshot = HistoryFile.open(file(SNAPSHOT));
+        assertEquals(9, snapshot.size());
+        assertEquals(-1, snapshot.find(txid(5)));
+        assertEquals(-1, snapshot.find(txid(20)));
+        assertEquals("snapshot", snapshot.read(snapshot.find(txid(3))).getMemo());
+        assertEquals("legacy", snapshot.read(snapshot.find(txid(4))).getMemo());
+        assertEquals(2, journalRecords());
+    }
+
+    @Test
+    public void importsInBoundedBatches() throws Exception {
+        int n = 2 * Migration.IMPORT_BATCH_SIZE + 100;
+        ArrayList<TransactionData> legacy = legacyHistory(n);
+        // Shuffle so that every batch lands between rows of the ones before it.
+        Collections.shuffle(legacy, new Random(3));
+        writeLegacy(legacy);
+        List<Integer> progress = new ArrayList<Integer>();
+
+        Migration.importLegacyHistory(folder.getRoot(), progress::add);
+
+        assertEquals(Arrays.asList(Migration.IMPORT_BATCH_SIZE, 2 * Migration.IMPORT_BATCH_SIZE, n), progress);
+        HistoryFile snapshot = HistoryFile.open(file(SNAPSHOT));
+        assertEquals(n, snapshot.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(tx(n - 1 - i, "").getTxid(), snapshot.read(i).getTxid());
+        }
+    }
+
+    @Test
+    public void runsAgainAfterAnInterruptedImport() throws Exception {
+        ArrayList<TransactionData> legacy = legacyHistory(100);
+        writeLegacy(legacy);
+        Migration.importLegacyHistory(folder.getRoot(), null);
+        // Die after the snapshot was renamed into place but before the legacy file
+        // was deleted, leaving a half written temporary file from a later write.
+        writeLegacy(legacy);
+        FileOutputStream tmp = new FileOutputStream(file(SNAPSHOT + ".tmp"));
+        tmp.write(new byte[]{1, 2, 3});
+        tmp.close();
+
+        Migration.importLegacyHistory(folder.getRoot(), null);
+
+        assertFalse(file(LEGACY).exists());
+        assertEquals(100, HistoryFile.open(file(SNAPSHOT)).size());
+    }
+
+    @Test
+    public void setsAsideAnUnreadableLegacyFile() throws Exception {
+        HistoryFile.write(file(SNAPSHOT), Collections.singletonList(tx(1, "snapshot")));
+        FileOutputStream out = new FileOutputStream(file(LEGACY));
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+
+        Migration.importLegacyHistory(folder.getRoot(), null);
+
+        assertFalse(file(LEGACY).exists());
+        assertTrue(file(LEGACY + ".failed").exists());
+        assertFalse(file(SNAPSHOT + ".tmp").exists());
+        HistoryFile snapshot = HistoryFile.open(file(SNAPSHOT));
+        assertEquals(1, snapshot.size());
+        assertEquals("snapshot", snapshot.read(0).getMemo());
+    }
+
+    @Test
+    public void tellsWhetherTheHistoryNeedsMigrating() throws Exception {
+        assertFalse(Migration.needsHistoryMigration(folder.getRoot()));
+        HistoryFile.write(file(SNAPSHOT), Collections.singletonList(tx(1, "snapshot")));
+        assertFalse(Migration.needsHistoryMigration(folder.getRoot()));
+        writeLegacy(legacyHistory(3));
+        assertTrue(Migration.needsHistoryMigration(folder.getRoot()));
+
+        Migration.migrateHistory(folder.getRoot(), null);
+        assertFalse(Migration.needsHistoryMigration(folder.getRoot()));
+        setVersion(file(SNAPSHOT), HistoryFile.VERSION + 1);
+        assertTrue(Migration.needsHistoryMigration(folder.getRoot()));
+    }
+
+    @Test
+    public void doesNothingWithoutALegacyFile() throws Exception {
+        Migration.importLegacyHistory(folder.getRoot(), null);
+        assertFalse(file(SNAPSHOT).exists());
+        assertFalse(file(JOURNAL).exists());
+    }
+
+    @Test
+    public void leavesACurrentSnapshotAlone() throws Exception {
+        HistoryFile.write(file(SNAPSHOT), Collections.singletonList(tx(1, "snapshot")));
+        long modified = file(SNAPSHOT).lastModified();
+
+        Migration.upgradeHistory(folder.getRoot());
+
+        assertEquals(modified, file(SNAPSHOT).lastModified());
+        assertEquals(1, HistoryFile.open(file(SNAPSHOT)).size());
+    }
+
+    @Test
+    public void keepsASnapshotItCannotUpgrade() throws Exception {
+        HistoryFile.write(file(SNAPSHOT), Collections.singletonList(tx(1, "snapshot")));
+        setVersion(file(SNAPSHOT), HistoryFile.VERSION + 1);
+        long length = file(SNAPSHOT).length();
+        try {
+            HistoryFile.open(file(SNAPSHOT));
+            fail("opened a snapshot of another version");
+        } catch (HistoryFile.VersionException e) {
+            assertEquals(HistoryFile.VERSION + 1, e.version);
+        }
+
+        Migration.upgradeHistory(folder.getRoot());
+
+        assertFalse(file(SNAPSHOT).exists());
+        File kept = file(SNAPSHOT + ".v" + (HistoryFile.VERSION + 1));
+        assertEquals(length, kept.length());
+        assertEquals(HistoryFile.VERSION + 1, HistoryFile.readVersion(kept));
+    }
+
+    @Test
+    public void leavesADamagedSnapshotToTheStore() throws Exception {
+        FileOutputStream out = new FileOutputStream(file(SNAPSHOT));
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+
+        Migration.upgradeHistory(folder.getRoot());
+
+        assertTrue(file(SNAPSHOT).exists());
+    }
+
+    private File file(String name) {
+        return new File(folder.getRoot(), name);
+    }
+
+    private void writeLegacy(ArrayList<TransactionData> txs) throws Exception {
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file(LEGACY)));
+        out.writeObject(txs);
+        out.close();
+    }
+
+    private static void setVersion(File snapshot, int version) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+        raf.seek(4);
+        raf.writeInt(version);
+        raf.close();
+    }
+
+    private int journalRecords() throws Exception {
+        TransactionJournal journal = new TransactionJournal(file(JOURNAL));
+        journal.replay(tx -> { });
+        journal.close();
+        return journal.getRecordCount();
+    }
+
+    // Earlier versions kept the history oldest first.
+    private static ArrayList<TransactionData> legacyHistory(int n) {
+        ArrayList<TransactionData> txs = new ArrayList<TransactionData>();
+        for (int i = 0; i < n; i++) {
+            txs.add(tx(i, "legacy"));
+        }
+        return txs;
+    }
+
+    private static byte[] txid(int n) {
+        return TransactionCodec.txidToBytes(tx(n, "").getTxid());
+    }
+
+    private static TransactionData tx(int n, String memo) {
+        return new TransactionData(String.format("%064x", n), n % 2 == 0, memo, 1000 + n, "", "USD",
+                1551398400L + n * 60, "qqaddress", 100 + n);
+    }
+}
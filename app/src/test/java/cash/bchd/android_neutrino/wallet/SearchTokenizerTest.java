@@ -0,0 +1,42 @@
+package cash.bchd.android_neutrino.wallet;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class SearchTokenizerTest {
+
+    @Test
+    public void splitsOnAnythingButLettersAndDigits() {
+        assertEquals(Arrays.asList("lunch", "w", "bob", "12", "50"),
+                SearchTokenizer.tokenize("Lunch w/ Bob - $12.50"));
+    }
+
+    @Test
+    public void foldsCaseIndependentOfLocale() {
+        assertEquals(Arrays.asList("istanbul", "trip"), SearchTokenizer.tokenize("ISTANBUL Trip"));
+        assertEquals(Arrays.asList("café", "über"), SearchTokenizer.tokenize("CAFÉ Über"));
+    }
+
+    @Test
+    public void dropsRepeatedTokens() {
+        assertEquals(Arrays.asList("rent", "march"), SearchTokenizer.tokenize("Rent, march RENT"));
+    }
+
+    @Test
+    public void handlesEmptyText() {
+        assertEquals(Collections.emptyList(), SearchTokenizer.tokenize((String) null));
+        assertEquals(Collections.emptyList(), SearchTokenizer.tokenize(""));
+        assertEquals(Collections.emptyList(), SearchTokenizer.tokenize(" -- "));
+    }
+
+    @Test
+    public void tokenizesMemoThenAddress() {
+        TransactionData tx = new TransactionData("00", false, "Pay bitcoincash", 1, "", "USD", 1,
+                "bitcoincash:qqabc", 1);
+        assertEquals(Arrays.asList("pay", "bitcoincash", "qqabc"), SearchTokenizer.tokenize(tx));
+    }
+}
@@ -0,0 +1,129 @@
+package cash.bchd.android_neutrino.wallet;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TransactionColumnsTest {
+
+    @Test
+    public void insertsAndRemovesRows() {
+        TransactionColumns columns = new TransactionColumns();
+        columns.addAll(Arrays.asList(tx(1), tx(2), tx(3)));
+        columns.add(1, tx(4));
+        columns.addAll(0, Arrays.asList(tx(5), tx(6)));
+        assertEquals(Arrays.asList(5, 6, 1, 4, 2, 3), ids(columns));
+
+        columns.remove(2);
+        columns.removeRange(3, 5);
+        assertEquals(Arrays.asList(5, 6, 4), ids(columns));
+        assertFalse(columns.newRow().moveTo(0).getIncoming());
+        assertTrue(columns.newRow().moveTo(1).getIncoming());
+    }
+
+    @Test
+    public void roundTripsEveryField() {
+        TransactionColumns columns = new TransactionColumns();
+        TransactionData tx = new TransactionData(String.format("%064x", 42), true, null, -123, "$4.56", "EUR",
+                1551398400L, "qqaddress", 590000);
+        columns.add(tx);
+        TransactionData read = columns.get(0);
+        assertEquals(tx.getTxid(), read.getTxid());
+        assertTrue(read.getIncoming());
+        assertNull(read.getMemo());
+        assertEquals(-123, read.getAmount());
+        assertEquals("$4.56", read.getFiatAmount());
+        assertEquals("EUR", read.getFiatCurrency());
+        assertEquals(1551398400L, read.getTimestamp());
+        assertEquals("qqaddress", read.getToAddress());
+        assertEquals(590000, read.getHeight());
+    }
+
+    @Test
+    public void givesATransactionTheSameIdAnywhere() {
+        // Txids are hashes, so every byte of them varies.
+        TransactionData x = new TransactionData(repeat("3f"), true, "", 1, "", "USD", 1, "", 1);
+        TransactionData y = new TransactionData(repeat("a7"), true, "", 1, "", "USD", 1, "", 1);
+        TransactionColumns a = new TransactionColumns();
+        a.addAll(Arrays.asList(x, y));
+        TransactionColumns b = new TransactionColumns();
+        b.addAll(Arrays.asList(tx(3), y, x));
+        assertEquals(a.getId(0), b.getId(2));
+        assertEquals(a.getId(1), b.getId(1));
+        assertNotEquals(a.getId(0), a.getId(1));
+    }
+
+    @Test
+    public void keepsTheDictionaryBoundedWhileScrolling() {
+        TransactionColumns columns = new TransactionColumns();
+        int maxStrings = 0;
+        for (int start = 0; start < 20000; start += 50) {
+            List<TransactionData> page = new ArrayList<TransactionData>();
+            for (int n = start; n < start + 50; n++) {
+                page.add(tx(n));
+            }
+            columns.addAll(page);
+            if (columns.size() > 200) {
+                columns.removeRange(0, columns.size() - 200);
+            }
+            maxStrings = Math.max(maxStrings, columns.stringCount());
+        }
+        assertTrue("strings " + maxStrings, maxStrings < 4 * 200 * 3);
+        for (int i = 0; i < columns.size(); i++) {
+            int n = 19800 + i;
+            assertEquals("memo " + n, columns.get(i).getMemo());
+            assertEquals("qq" + n, columns.get(i).getToAddress());
+        }
+    }
+
+    @Test
+    public void keepsTheDictionaryBoundedWhileOverwriting() {
+        TransactionColumns columns = new TransactionColumns();
+        for (int n = 0; n < 10; n++) {
+            columns.add(tx(n));
+        }
+        for (int n = 10; n < 5000; n++) {
+            columns.set(n % 10, tx(n));
+        }
+        assertTrue(columns.stringCount() < 200);
+        assertEquals("memo 4999", columns.get(9).getMemo());
+    }
+
+    @Test
+    public void clearStartsANewDictionary() {
+        TransactionColumns columns = new TransactionColumns();
+        for (int n = 0; n < 100; n++) {
+            columns.add(tx(n));
+        }
+        columns.clear();
+        assertEquals(0, columns.size());
+        assertEquals(1, columns.stringCount());
+        columns.add(tx(7));
+        assertEquals("memo 7", columns.get(0).getMemo());
+    }
+
+    private static String repeat(String hex) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 32; i++) {
+            sb.append(hex);
+        }
+        return sb.toString();
+    }
+
+    private static List<Integer> ids(TransactionColumns columns) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < columns.size(); i++) {
+            ids.add(Integer.parseInt(columns.get(i).getTxid(), 16));
+        }
+        return ids;
+    }
+
+    private static TransactionData tx(int n) {
+        return new TransactionData(String.format("%064x", n), n % 2 == 0, "memo " + n, n, "$" + n, "USD",
+                1551398400L + n, "qq" + n, n);
+    }
+}
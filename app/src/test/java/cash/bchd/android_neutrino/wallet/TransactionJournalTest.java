@@ -0,0 +1,174 @@
+package cash.bchd.android_neutrino.wallet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TransactionJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "journal.dat");
+    }
+
+    @Test
+    public void replaysRecordsInOrder() throws Exception {
+        TransactionJournal journal = open();
+        journal.append(Arrays.asList(tx(1, "a"), tx(2, "b")));
+        journal.append(Collections.singletonList(tx(1, "c")));
+        journal.close();
+
+        journal = new TransactionJournal(file);
+        List<TransactionData> replayed = replay(journal);
+        assertEquals(Arrays.asList("a", "b", "c"), memos(replayed));
+        assertEquals(tx(1, "").getTxid(), replayed.get(2).getTxid());
+        assertEquals(3, journal.getRecordCount());
+        journal.close();
+    }
+
+    @Test
+    public void stopsInFrontOfATornRecord() throws Exception {
+        TransactionJournal journal = open();
+        journal.append(Collections.singletonList(tx(1, "a")));
+        journal.append(Collections.singletonList(tx(2, "b")));
+        journal.close();
+        // Lose the end of the last record, as if we died while writing it.
+        truncate(file.length() - 3);
+
+        journal = new TransactionJournal(file);
+        assertEquals(Collections.singletonList("a"), memos(replay(journal)));
+        assertEquals(1, journal.getRecordCount());
+        journal.close();
+    }
+
+    @Test
+    public void nextAppendTruncatesTheTornTail() throws Exception {
+        TransactionJournal journal = open();
+        journal.append(Collections.singletonList(tx(1, "a")));
+        journal.close();
+        long intact = file.length();
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[]{0, 0, 0, 50, 1, 2, 3, 4, 1, 9, 9});
+        out.close();
+
+        journal = new TransactionJournal(file);
+        replay(journal);
+        journal.append(Collections.singletonList(tx(2, "b")));
+        journal.close();
+        assertTrue(file.length() > intact);
+
+        journal = new TransactionJournal(file);
+        assertEquals(Arrays.asList("a", "b"), memos(replay(journal)));
+        journal.close();
+    }
+
+    @Test
+    public void stopsAtAChecksumMismatch() throws Exception {
+        TransactionJournal journal = open();
+        journal.append(Collections.singletonList(tx(1, "a")));
+        long second = file.length();
+        journal.append(Collections.singletonList(tx(2, "b")));
+        journal.append(Collections.singletonList(tx(3, "c")));
+        journal.close();
+        // Flip a payload byte of the second record.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(second + 12);
+        int b = raf.read();
+        raf.seek(second + 12);
+        raf.write(b ^ 0xFF);
+        raf.close();
+
+        journal = new TransactionJournal(file);
+        assertEquals(Collections.singletonList("a"), memos(replay(journal)));
+        journal.close();
+    }
+
+    @Test
+    public void recoversFromATornFileHeader() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{0x54, 0x58});
+        out.close();
+
+        TransactionJournal journal = new TransactionJournal(file);
+        assertTrue(replay(journal).isEmpty());
+        journal.append(Collections.singletonList(tx(1, "a")));
+        journal.close();
+
+        journal = new TransactionJournal(file);
+        assertEquals(Collections.singletonList("a"), memos(replay(journal)));
+        journal.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[32]);
+        out.close();
+        replay(new TransactionJournal(file));
+    }
+
+    @Test
+    public void rewriteReplacesEverything() throws Exception {
+        TransactionJournal journal = open();
+        for (int i = 0; i < 10; i++) {
+            journal.append(Collections.singletonList(tx(1, "v" + i)));
+        }
+        journal.rewrite(Collections.singletonList(tx(1, "latest")));
+        assertEquals(1, journal.getRecordCount());
+        journal.append(Collections.singletonList(tx(2, "after")));
+        journal.close();
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        journal = new TransactionJournal(file);
+        assertEquals(Arrays.asList("latest", "after"), memos(replay(journal)));
+        journal.close();
+    }
+
+    private TransactionJournal open() throws IOException {
+        TransactionJournal journal = new TransactionJournal(file);
+        journal.replay(tx -> fail("new journal should be empty"));
+        return journal;
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(length);
+        raf.close();
+    }
+
+    private static List<TransactionData> replay(TransactionJournal journal) throws IOException {
+        List<TransactionData> txs = new ArrayList<TransactionData>();
+        journal.replay(txs::add);
+        return txs;
+    }
+
+    private static List<String> memos(List<TransactionData> txs) {
+        List<String> memos = new ArrayList<String>();
+        for (TransactionData tx : txs) {
+            memos.add(tx.getMemo());
+        }
+        return memos;
+    }
+
+    private static TransactionData tx(int n, String memo) {
+        return new TransactionData(String.format("%064x", n), true, memo, 1000, "", "USD", 1551398400L + n,
+                "qqaddress", 1);
+    }
+}